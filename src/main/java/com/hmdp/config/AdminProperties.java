@@ -0,0 +1,22 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 管理接口(/admin/**、/metrics/**)的参数，对应application.yaml中的 hmdp.admin.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.admin")
+public class AdminProperties {
+
+    /**
+     * 可以调用管理接口的用户id，为空时所有用户都不能调用
+     */
+    private List<Long> userIds = new ArrayList<>();
+}
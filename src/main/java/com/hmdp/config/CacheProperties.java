@@ -0,0 +1,38 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 查询缓存CacheClient的参数，对应application.yaml中的 hmdp.cache.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 本地一级缓存
+     */
+    private Near near = new Near();
+
+    @Data
+    public static class Near {
+        /**
+         * 是否在Redis前面加一层本地缓存，命中时不访问Redis、不解析JSON
+         */
+        private boolean enabled = false;
+
+        /**
+         * 本地缓存最多的条数，超过后淘汰最久没有访问的
+         */
+        private int maximumSize = 1000;
+
+        /**
+         * 本地缓存的有效期(毫秒)，从写入开始算，访问不会延长。
+         * 正常情况下数据更新时会通过Redis广播让各实例删掉本地缓存，这个时间是漏掉广播时脏数据最多存在多久
+         */
+        private long ttlMillis = 5000;
+    }
+}
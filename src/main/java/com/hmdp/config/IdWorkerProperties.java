@@ -0,0 +1,77 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 全局ID生成器RedisIdWorker的参数，对应application.yaml中的 hmdp.id-worker.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id-worker")
+public class IdWorkerProperties {
+
+    /**
+     * 序列号的分配方式
+     */
+    private Mode mode = Mode.REDIS;
+
+    /**
+     * 按业务前缀单独指定分配方式，比如 order: snowflake，没有配置的前缀用mode
+     */
+    private Map<String, Mode> prefixModes = new HashMap<>();
+
+    /**
+     * segment模式下每次INCRBY预留的序列号个数
+     */
+    private int segmentSize = 1000;
+
+    /**
+     * segment模式下当前号段剩余不到这个比例时，异步预取下一个号段
+     */
+    private double prefetchRatio = 0.2;
+
+    /**
+     * snowflake模式下workerId的位数，workerId和每毫秒序列号一共21位，
+     * 默认6位(最多64个实例同时租用)，每毫秒序列号15位(每个实例每毫秒32768个ID)
+     */
+    private int workerIdBits = 6;
+
+    /**
+     * snowflake模式下workerId租约的有效期(毫秒)，每1/3有效期续期一次
+     */
+    private long workerLeaseTtlMillis = 30000;
+
+    /**
+     * snowflake模式下允许的时钟回拨/借用未来时间的最大值(毫秒)，
+     * 回拨不超过这个值时继续用逻辑时钟发号，超过就退回redis模式直到时钟追上
+     */
+    private long maxClockBackwardMillis = 5000;
+
+    public Mode modeOf(String keyPrefix) {
+        return prefixModes.getOrDefault(keyPrefix, mode);
+    }
+
+    public boolean usesSnowflake() {
+        return mode == Mode.SNOWFLAKE || prefixModes.containsValue(Mode.SNOWFLAKE);
+    }
+
+    public enum Mode {
+        /**
+         * 每个ID INCR一次 icr:{prefix}:{yyyy:MM:dd}
+         */
+        REDIS,
+        /**
+         * 用INCRBY一次预留一段序列号，在本地用AtomicLong发放，用到阈值时异步预取下一段
+         */
+        SEGMENT,
+        /**
+         * 完全本地生成：时间戳 + 从Redis租用的workerId + 每毫秒序列号，发号不访问网络
+         */
+        SNOWFLAKE
+    }
+}
@@ -1,7 +1,10 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SeckillRateLimitInterceptor;
+import com.hmdp.utils.SeckillUserRateLimitInterceptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
@@ -22,6 +25,15 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private RefreshTokenInterceptor refreshTokenInterceptor;
 
+    @Resource
+    private SeckillRateLimitInterceptor seckillRateLimitInterceptor;
+
+    @Resource
+    private SeckillUserRateLimitInterceptor seckillUserRateLimitInterceptor;
+
+    @Resource
+    private AdminInterceptor adminInterceptor;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(loginInterceptor) // ✅ 这里不再手动 new
@@ -35,6 +47,11 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/login"
                 ).order(1);//值越大，优先级越低
         registry.addInterceptor(refreshTokenInterceptor).addPathPatterns("/**").order(0);
+        //运行指标里有锁名(比如 order:{userId})，也只给管理员看
+        registry.addInterceptor(adminInterceptor).addPathPatterns("/admin/**", "/metrics", "/metrics/**").order(2);
+        //按券限流放在最前面，过载时被拒绝的请求不查token；按用户限流放在登录拦截器后面，按查出来的用户id限流
+        registry.addInterceptor(seckillRateLimitInterceptor).addPathPatterns("/voucher-order/seckill/**").order(-1);
+        registry.addInterceptor(seckillUserRateLimitInterceptor).addPathPatterns("/voucher-order/seckill/**").order(2);
     }
 }
 
@@ -0,0 +1,354 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 秒杀下单链路的可调参数，对应application.yaml中的 hmdp.seckill.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 消费者每次XREADGROUP最多拉取的订单条数，1表示逐条落库(老的处理方式)
+     */
+    private int batchSize = 100;
+
+    /**
+     * XREADGROUP阻塞等待的时间(毫秒)
+     */
+    private long blockMillis = 2000;
+
+    /**
+     * 订单落库方式
+     */
+    private PersistMode persistMode = PersistMode.LOCK;
+
+    /**
+     * 每个实例的消费者线程数，每个线程是消费者组里一个独立命名的消费者
+     */
+    private int consumerThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * pending消息空闲超过这个时间(毫秒)就认为原消费者已经挂了，可以被XCLAIM接管
+     */
+    private long claimIdleMillis = 60000;
+
+    /**
+     * 回收线程扫描XPENDING的间隔(毫秒)
+     */
+    private long reclaimIntervalMillis = 30000;
+
+    /**
+     * 回收线程每次XPENDING最多检查的消息数
+     */
+    private long reclaimBatchSize = 100;
+
+    /**
+     * 订单队列的实现
+     */
+    private QueueType queue = QueueType.REDIS_STREAM;
+
+    /**
+     * ring-buffer模式下环形队列的容量，会向上取整到2的幂
+     */
+    private int ringBufferSize = 65536;
+
+    /**
+     * ring-buffer模式下队列满时最多等待多久(毫秒)，超时会退还名额并提示用户稍后重试
+     */
+    private long ringBufferPublishTimeoutMillis = 100;
+
+    /**
+     * 一条订单消息最多投递的次数(含第一次)，超过后转入死信
+     */
+    private long maxDeliveries = 5;
+
+    /**
+     * 失败重试的初始退避时间(毫秒)，第n次重试等待 retryBackoffMillis * 2^(n-1)
+     */
+    private long retryBackoffMillis = 1000;
+
+    /**
+     * 失败重试的最大退避时间(毫秒)
+     */
+    private long retryBackoffMaxMillis = 30000;
+
+    /**
+     * 组合抢购一次最多包含的秒杀券数
+     */
+    private int bundleMaxSize = 10;
+
+    /**
+     * 本地售罄标记的有效期(毫秒)，过期后放一个请求去Redis重新确认，防止漏收补库存的广播
+     */
+    private long soldOutTtlMillis = 5000;
+
+    /**
+     * 订单状态 seckill:status:{orderId} 在Redis中的保存时间(秒)
+     */
+    private long statusTtlSeconds = 1800;
+
+    /**
+     * 订单状态本地近端缓存的最大条数
+     */
+    private int statusNearCacheSize = 100000;
+
+    /**
+     * QUEUED状态在本地缓存的时间(毫秒)，只是为了挡住高频轮询，不能太长
+     */
+    private long statusNearCacheQueuedMillis = 500;
+
+    /**
+     * PERSISTED/FAILED终态在本地缓存的时间(毫秒)
+     */
+    private long statusNearCacheFinalMillis = 60000;
+
+    /**
+     * 秒杀接口限流
+     */
+    private RateLimit rateLimit = new RateLimit();
+
+    /**
+     * 本地订单预写日志
+     */
+    private Journal journal = new Journal();
+
+    @Data
+    public static class Journal {
+        /**
+         * 是否把Redis扣过名额的订单追加写到本地日志
+         */
+        private boolean enabled = false;
+        /**
+         * 日志目录
+         */
+        private String dir = "journal";
+        /**
+         * 每个段文件的大小(MB)，写满后滚动
+         */
+        private int segmentSizeMb = 64;
+        /**
+         * 刷盘间隔(毫秒)，崩溃时最多丢失这段时间内追加的记录
+         */
+        private long flushIntervalMillis = 10;
+        /**
+         * 检查封存的段能否删除的间隔(毫秒)
+         */
+        private long sweepIntervalMillis = 60000;
+        /**
+         * 段文件最长保留时间(小时)，超过后即使还有订单没有结果也删除
+         */
+        private long retainHours = 72;
+    }
+
+    /**
+     * 秒杀请求合批
+     */
+    private Batch batch = new Batch();
+
+    @Data
+    public static class Batch {
+        /**
+         * 是否把同一张券的并发请求合并成一次seckill_batch.lua调用，分段库存的券不合批
+         */
+        private boolean enabled = false;
+        /**
+         * 第一个请求到达后最多等待多久(微秒)收集同一批的请求
+         */
+        private long windowMicros = 200;
+        /**
+         * 一批最多多少个请求，攒满了立即执行
+         */
+        private int maxSize = 128;
+        /**
+         * 请求等待批量结果的超时时间(毫秒)，超时时批次还没执行就撤出请求，已经在执行就继续等结果
+         */
+        private long timeoutMillis = 1000;
+    }
+
+    /**
+     * Redis与MySQL的定时对账
+     */
+    private Reconcile reconcile = new Reconcile();
+
+    @Data
+    public static class Reconcile {
+        /**
+         * 是否开启定时对账
+         */
+        private boolean enabled = false;
+        /**
+         * 对账间隔(毫秒)，集群内同一时间只有一个实例执行
+         */
+        private long intervalMillis = 600000;
+        /**
+         * 定时对账时是否自动修复
+         */
+        private boolean repair = false;
+        /**
+         * 对账范围：未结束的秒杀券，以及结束不超过这么久(小时)的秒杀券
+         */
+        private long lookbackHours = 24;
+        /**
+         * 每批SSCAN/SQL处理的用户数
+         */
+        private int chunkSize = 1000;
+        /**
+         * Redis里有、MySQL里没有的用户，等这么久(毫秒)再确认一次，排除正在落库的订单
+         */
+        private long graceMillis = 10000;
+        /**
+         * 每张券最多记录多少个待确认的用户，超过的只计数不修复，防止占用过多内存
+         */
+        private int maxCandidates = 10000;
+        /**
+         * 报告里每种差异最多列出的用户数
+         */
+        private int sampleSize = 100;
+    }
+
+    /**
+     * 未支付订单超时自动取消
+     */
+    private Unpaid unpaid = new Unpaid();
+
+    @Data
+    public static class Unpaid {
+        /**
+         * 是否开启超时取消，开启后下单成功的订单会登记到延时队列 seckill:unpaid
+         */
+        private boolean enabled = false;
+        /**
+         * 支付超时时间(毫秒)，从Redis扣名额开始计算
+         */
+        private long payTimeoutMillis = 900000;
+        /**
+         * 每个实例取消订单的线程数
+         */
+        private int workerThreads = 2;
+        /**
+         * 每次从延时队列认领的到期订单数
+         */
+        private int batchSize = 100;
+        /**
+         * 没有到期订单时的轮询间隔(毫秒)
+         */
+        private long pollIntervalMillis = 1000;
+        /**
+         * 认领的租期(毫秒)，到期还没处理完(实例挂了、订单还没落库)的订单会被重新认领
+         */
+        private long leaseMillis = 30000;
+    }
+
+    /**
+     * stream.orders的保留和归档
+     */
+    private Retention retention = new Retention();
+
+    @Data
+    public static class Retention {
+        /**
+         * 是否定期裁剪stream.orders
+         */
+        private boolean enabled = true;
+        /**
+         * 裁剪间隔(毫秒)，集群内同一时间只有一个实例执行
+         */
+        private long intervalMillis = 60000;
+        /**
+         * 已确认的消息至少保留多久(毫秒)，方便排查问题
+         */
+        private long retainMillis = 3600000;
+        /**
+         * 裁剪前是否把消息归档到本地追加写的文件
+         */
+        private boolean archive = false;
+        /**
+         * 归档目录，每天一个文件 stream.orders-yyyyMMdd.log，每行一条JSON
+         */
+        private String archiveDir = "archive";
+        /**
+         * 归档时每次XRANGE读取的消息数
+         */
+        private int archiveBatchSize = 1000;
+    }
+
+    @Data
+    public static class RateLimit {
+        /**
+         * 是否开启限流
+         */
+        private boolean enabled = true;
+        /**
+         * 单个实例上每张券每秒放行的请求数，vouchers里没有单独配置的券用这个值
+         */
+        private double voucherPermitsPerSecond = 5000;
+        private int voucherBurst = 1000;
+        /**
+         * 单个实例上每个用户(按登录用户id)每秒放行的请求数
+         */
+        private double userPermitsPerSecond = 2;
+        private int userBurst = 5;
+        /**
+         * 本地最多保存多少个用户的令牌桶，闲置超过user-idle-millis的会被淘汰
+         */
+        private int userBucketCapacity = 100000;
+        private long userIdleMillis = 60000;
+        /**
+         * 是否开启集群共享的Redis令牌桶(每张券一个)，会多一次Redis调用
+         */
+        private boolean clusterEnabled = false;
+        private double clusterPermitsPerSecond = 20000;
+        private int clusterBurst = 5000;
+        /**
+         * 按优惠券单独配置，key是优惠券id
+         */
+        private Map<Long, VoucherLimit> vouchers = new HashMap<>();
+    }
+
+    @Data
+    public static class VoucherLimit {
+        private Double permitsPerSecond;
+        private Integer burst;
+        private Double clusterPermitsPerSecond;
+        private Integer clusterBurst;
+    }
+
+    //第n次失败后的退避时间 retryBackoffMillis * 2^(n-1)，不超过retryBackoffMaxMillis
+    public long backoffMillis(long attempts) {
+        long backoff = retryBackoffMillis;
+        for (long i = 1; i < attempts && backoff < retryBackoffMaxMillis; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, retryBackoffMaxMillis);
+    }
+
+    public enum QueueType {
+        /**
+         * Redis Stream，秒杀脚本直接XADD，多实例共享
+         */
+        REDIS_STREAM,
+        /**
+         * 进程内环形队列，省掉一次Stream读写，只适合单实例部署
+         */
+        RING_BUFFER
+    }
+
+    public enum PersistMode {
+        /**
+         * 按用户加两级锁(本地按锁名的ReentrantLock + Redis上可重入的SimpleRedisLock) + 查询判断一人一单
+         */
+        LOCK,
+        /**
+         * 不加锁不查询，靠tb_voucher_order上(user_id, voucher_id)的唯一索引保证一人一单，同一个订单id重复插入当作成功，撞上别的订单id当作重复下单
+         */
+        IDEMPOTENT
+    }
+}
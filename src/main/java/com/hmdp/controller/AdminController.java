@@ -0,0 +1,88 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillReconcileReport;
+import com.hmdp.service.IVoucherOrderDeadLetterService;
+import com.hmdp.service.impl.SeckillReconciler;
+import com.hmdp.service.impl.SeckillVoucherPreloader;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 管理接口，需要登录并且是hmdp.admin.user-ids里的用户(AdminInterceptor)
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private SeckillVoucherPreloader seckillVoucherPreloader;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    @Resource
+    private IVoucherOrderDeadLetterService voucherOrderDeadLetterService;
+
+    /**
+     * 把所有未结束的秒杀券的库存、已下单用户、秒杀时间重新预热到Redis
+     * @return 预热的秒杀券数量
+     */
+    @PostMapping("seckill/preload")
+    public Result preloadSeckillVouchers() {
+        return Result.ok(seckillVoucherPreloader.preloadAll());
+    }
+
+    /**
+     * 预热单张秒杀券
+     * @param voucherId 优惠券id
+     */
+    @PostMapping("seckill/preload/{id}")
+    public Result preloadSeckillVoucher(@PathVariable("id") Long voucherId) {
+        return seckillVoucherPreloader.preload(voucherId) ? Result.ok() : Result.fail("秒杀券不存在");
+    }
+
+    /**
+     * 提交单张秒杀券的Redis与MySQL对账，在对账线程里执行，结果用GET同一个地址查询
+     * @param voucherId 优惠券id
+     * @param repair 是否修复差异
+     */
+    @PostMapping("seckill/reconcile/{id}")
+    public Result reconcileSeckillVoucher(@PathVariable("id") Long voucherId,
+                                          @RequestParam(value = "repair", defaultValue = "false") Boolean repair) {
+        return seckillReconciler.reconcileAsync(voucherId, repair) ? Result.ok() : Result.fail("秒杀券不存在");
+    }
+
+    /**
+     * 查询单张秒杀券最近一次手动对账的结果
+     * @param voucherId 优惠券id
+     */
+    @GetMapping("seckill/reconcile/{id}")
+    public Result queryReconcileReport(@PathVariable("id") Long voucherId) {
+        SeckillReconcileReport report = seckillReconciler.lastReport(voucherId);
+        return report == null ? Result.fail("还没有对账结果") : Result.ok(report);
+    }
+
+    /**
+     * 查询待处理的死信订单
+     */
+    @GetMapping("voucher-order/dead-letter")
+    public Result queryDeadLetters(@RequestParam(value = "current", defaultValue = "1") Integer current) {
+        return Result.ok(voucherOrderDeadLetterService.queryPending(current));
+    }
+
+    /**
+     * 重放死信订单，修复了导致失败的问题之后调用
+     * @param count 最多重放多少条
+     */
+    @PostMapping("voucher-order/dead-letter/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return Result.ok(voucherOrderDeadLetterService.replay(count));
+    }
+}
@@ -0,0 +1,31 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.MetricsRegistry;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 运行指标，只有hmdp.admin.user-ids里的用户可以查看(AdminInterceptor)
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    @Resource
+    private MetricsRegistry metricsRegistry;
+
+    @GetMapping
+    public Result metrics() {
+        return Result.ok(metricsRegistry.snapshot());
+    }
+
+    //只看锁的指标：各类锁的加锁耗时、持有时间、失败率，以及获取失败最多的锁名
+    @GetMapping("/locks")
+    public Result lockMetrics() {
+        return Result.ok(metricsRegistry.snapshot("lock."));
+    }
+}
@@ -5,12 +5,15 @@ import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -28,4 +31,22 @@ public class VoucherOrderController{
 
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 组合抢购，比如一次抢同一个店铺的多张秒杀券
+     * @param voucherIds 秒杀券id，逗号分隔
+     */
+    @PostMapping("seckill/bundle")
+    public Result seckillBundle(@RequestParam("ids") List<Long> voucherIds) {
+        return voucherOrderService.seckillBundle(voucherIds);
+    }
+
+    /**
+     * 查询秒杀订单状态 QUEUED(排队中) PERSISTED(下单成功) FAILED(下单失败)
+     * @param orderId 秒杀接口返回的订单id
+     */
+    @GetMapping("status/{orderId}")
+    public Result queryOrderStatus(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
 }
@@ -0,0 +1,33 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一张秒杀券的Redis与MySQL对账结果
+ */
+@Data
+public class SeckillReconcileReport {
+    private Long voucherId;
+    //Redis中各段库存之和
+    private Long redisStock;
+    //Redis中已下单用户数(各段集合的SCARD之和)
+    private Long redisBuyers;
+    //tb_seckill_voucher.stock
+    private Integer dbStock;
+    //tb_voucher_order中这张券的订单数
+    private Long dbOrders;
+    //Redis里有、MySQL里没有的用户数(已排除还在队列中和死信中的订单)
+    private long missingInDb;
+    //MySQL里有、Redis里没有的用户数
+    private long missingInRedis;
+    //修复的数量
+    private long repaired;
+    //订单队列还有积压，本次没有修复missingInDb
+    private boolean backlog;
+    //部分差异用户，最多sample-size个
+    private List<Long> missingInDbSample = new ArrayList<>();
+    private List<Long> missingInRedisSample = new ArrayList<>();
+}
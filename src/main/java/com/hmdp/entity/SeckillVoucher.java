@@ -38,6 +38,11 @@ public class SeckillVoucher implements Serializable {//当一个类 实现 Seria
      */
     private Integer stock;
 
+    /**
+     * Redis中库存分段数，大于1时库存拆到多个key上，热点券可以分散到多个Redis分片
+     */
+    private Integer segments;
+
     /**
      * 创建时间
      */
@@ -78,6 +78,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分段数，不填默认为1(不分段)
+     */
+    @TableField(exist = false)
+    private Integer segments;
+
     /**
      * 生效时间
      */
@@ -0,0 +1,78 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 多次重试仍然无法落库的秒杀订单(死信)
+ * </p>
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_voucher_order_dead_letter")
+public class VoucherOrderDeadLetter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 订单id
+     */
+    private Long orderId;
+
+    /**
+     * 下单的用户id
+     */
+    private Long userId;
+
+    /**
+     * 购买的代金券id
+     */
+    private Long voucherId;
+
+    /**
+     * 原消息在stream.orders中的id
+     */
+    private String streamId;
+
+    /**
+     * 投递次数
+     */
+    private Integer deliveries;
+
+    /**
+     * 最后一次失败的异常信息
+     */
+    private String error;
+
+    /**
+     * 状态，0：待处理；1：已重放成功；2：重放时被拒绝(如重复下单)
+     */
+    private Integer status;
+
+    /**
+     * 创建时间
+     */
+    private LocalDateTime createTime;
+
+    /**
+     * 更新时间
+     */
+    private LocalDateTime updateTime;
+
+
+}
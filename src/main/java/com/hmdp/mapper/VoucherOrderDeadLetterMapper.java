@@ -0,0 +1,13 @@
+package com.hmdp.mapper;
+
+import com.hmdp.entity.VoucherOrderDeadLetter;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+
+/**
+ * <p>
+ * 秒杀订单死信 Mapper 接口
+ * </p>
+ */
+public interface VoucherOrderDeadLetterMapper extends BaseMapper<VoucherOrderDeadLetter> {
+
+}
@@ -0,0 +1,37 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.entity.VoucherOrderDeadLetter;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * 秒杀订单死信 服务类
+ * </p>
+ */
+public interface IVoucherOrderDeadLetterService extends IService<VoucherOrderDeadLetter> {
+
+    /**
+     * 把订单写入死信stream(stream.orders.dlq)和死信表，调用方写入成功后再XACK原消息
+     * @param fields 原消息的内容
+     * @param streamId 原消息id
+     * @param deliveries 投递次数
+     * @param error 最后一次失败的原因
+     */
+    void deadLetter(Map<?, ?> fields, VoucherOrder voucherOrder, String streamId, long deliveries, String error);
+
+    /**
+     * 分页查询待处理的死信订单，按写入顺序
+     * @param current 页码，从1开始
+     */
+    List<VoucherOrderDeadLetter> queryPending(int current);
+
+    /**
+     * 重放死信stream中最早的count条订单
+     * @return replayed(落库成功) rejected(被拒绝，如重复下单) failed(仍然失败，移到死信stream的末尾) 的条数
+     */
+    Map<String, Integer> replay(int count);
+}
@@ -0,0 +1,36 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.util.List;
+
+/**
+ * <p>
+ * 秒杀订单队列：Redis扣过名额的订单放进队列，由消费者异步落库。
+ * 通过 hmdp.seckill.queue 选择实现：redis-stream(默认，多实例共享) 或 ring-buffer(单机进程内环形队列)
+ * </p>
+ */
+public interface IVoucherOrderQueue {
+
+    /**
+     * 秒杀Lua脚本是否直接把订单XADD到stream.orders，是的话脚本下单成功后不需要再调用publish
+     */
+    boolean publishedByScript();
+
+    /**
+     * 把订单放进队列
+     * @return false表示队列已满，调用方需要退还Redis里扣掉的名额
+     */
+    boolean publish(VoucherOrder voucherOrder);
+
+    /**
+     * 把一组订单一起放进队列(组合抢购)，要么全部入队，要么一个都不入队
+     * @return false表示队列放不下整组订单，调用方需要退还所有订单的名额
+     */
+    boolean publishAll(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 队列里是否还有没落库完的订单，对账退还名额之前判断
+     */
+    boolean hasBacklog();
+}
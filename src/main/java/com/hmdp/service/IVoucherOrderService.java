@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,4 +18,37 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 组合抢购：一次Lua调用判断并扣减多张秒杀券，全部有购买资格才下单，否则一张都不扣
+     * @param voucherIds 秒杀券id，重复的只算一次
+     * @return 成功时返回 秒杀券id -> 订单id
+     */
+    Result seckillBundle(List<Long> voucherIds);
+
+    /**
+     * 逐条落库一个秒杀订单(一人一单校验 + 扣减库存 + 保存订单)
+     * @param voucherOrder 从消息队列中读到的订单
+     * @return false表示订单因为重复下单或库存不足被丢弃
+     */
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 在一个事务里批量落库一批秒杀订单：按优惠券分组扣减库存，再用多行insert写入订单
+     * @param voucherOrders 从消息队列中读到的一批订单
+     * @return 因为重复下单或库存不足被丢弃的订单id
+     */
+    List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消一个超时未支付的订单，并归还数据库中的库存
+     * @return false表示订单已经不是未支付状态(已经支付或者已经取消过)，没有做任何修改
+     */
+    boolean cancelUnpaidOrder(Long orderId, Long voucherId);
+
+    /**
+     * 查询秒杀订单的处理状态
+     * @param orderId 秒杀接口返回的订单id
+     */
+    Result queryOrderStatus(Long orderId);
+
 }
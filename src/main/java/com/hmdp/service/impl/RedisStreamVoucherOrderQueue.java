@@ -0,0 +1,65 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderQueue;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ * 基于Redis Stream(stream.orders)的订单队列，消费者见VoucherOrderStreamConsumer
+ */
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill", name = "queue", havingValue = "redis-stream", matchIfMissing = true)
+public class RedisStreamVoucherOrderQueue implements IVoucherOrderQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Override
+    public boolean publishedByScript() {
+        return true;
+    }
+
+    @Override
+    public boolean publish(VoucherOrder voucherOrder) {
+        // XADD stream.orders * userId .. voucherId .. id ..
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", voucherOrder.getUserId().toString());
+        order.put("voucherId", voucherOrder.getVoucherId().toString());
+        order.put("id", voucherOrder.getId().toString());
+        stringRedisTemplate.opsForStream().add(STREAM_ORDERS_KEY, order);
+        return true;
+    }
+
+    @Override
+    public boolean publishAll(List<VoucherOrder> voucherOrders) {
+        voucherOrders.forEach(this::publish);
+        return true;
+    }
+
+    //消费者组还有pending消息，或者还有没投递的消息
+    @Override
+    public boolean hasBacklog() {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(STREAM_ORDERS_KEY))) {
+            return false;
+        }
+        PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP);
+        if (pending.getTotalPendingMessages() > 0) {
+            return true;
+        }
+        String lastGenerated = stringRedisTemplate.opsForStream().info(STREAM_ORDERS_KEY).lastGeneratedId();
+        return stringRedisTemplate.opsForStream().groups(STREAM_ORDERS_KEY).stream()
+                .filter(group -> STREAM_ORDERS_GROUP.equals(group.groupName()))
+                .noneMatch(group -> group.lastDeliveredId().equals(lastGenerated));
+    }
+}
@@ -0,0 +1,316 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderDeadLetterService;
+import com.hmdp.service.IVoucherOrderQueue;
+import com.hmdp.utils.MetricsRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单机进程内的订单队列：预分配的有界环形队列(多生产者多消费者，每个槽位一个序号，参考Vyukov的MPMC队列)，
+ * 订单字段直接存在三个long数组里，队列本身的存储是预分配的，入队出队都不加锁。
+ * 注意不是零分配：调用方入队前会建一个VoucherOrder，消费者出队时也给每个订单新建一个VoucherOrder，
+ * 因为这个对象要交给MyBatis落库，失败时还要留在重试队列里，不能复用。
+ * 消费者线程每次最多取batch-size个订单交给VoucherOrderPersister整批落库，失败的订单在本线程内按退避时间重试，
+ * 超过max-deliveries次转入死信。
+ * 注意：队列在内存里，进程崩溃时没落库的订单会丢失(Redis里的名额可以由对账任务退还)，只适合单实例部署
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill", name = "queue", havingValue = "ring-buffer")
+public class RingBufferVoucherOrderQueue implements IVoucherOrderQueue {
+
+    //队列满或者空时每次等待的时间
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private VoucherOrderPersister voucherOrderPersister;
+
+    @Resource
+    private IVoucherOrderDeadLetterService voucherOrderDeadLetterService;
+
+    @Resource
+    private MetricsRegistry metricsRegistry;
+
+    private int mask;
+    private long[] orderIds;
+    private long[] userIds;
+    private long[] voucherIds;
+    //槽位序号：等于入队位置说明可写，等于入队位置+1说明可读
+    private AtomicLongArray sequences;
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private final AtomicLong dequeuePos = new AtomicLong();
+    //已经处理完(落库、被拒绝或者转入死信)的订单数
+    private final AtomicLong completed = new AtomicLong();
+
+    private ExecutorService consumerExecutor;
+    private volatile boolean running = true;
+    private LongAdder fullRejected;
+
+    @PostConstruct
+    private void init() {
+        // 1.容量取不小于配置值的2的幂，下标用 pos & mask 计算
+        int capacity = Integer.highestOneBit(Math.max(seckillProperties.getRingBufferSize() - 1, 1)) << 1;
+        mask = capacity - 1;
+        orderIds = new long[capacity];
+        userIds = new long[capacity];
+        voucherIds = new long[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        fullRejected = metricsRegistry.counter("seckill.queue.ring.full");
+
+        // 2.启动消费者线程
+        int consumers = seckillProperties.getConsumerThreads();
+        consumerExecutor = Executors.newFixedThreadPool(consumers,
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-order-ring-").build());
+        for (int i = 0; i < consumers; i++) {
+            consumerExecutor.submit(new VoucherOrderHandler());
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        consumerExecutor.shutdownNow();
+        long lost = enqueuePos.get() - completed.get();
+        if (lost > 0) {
+            log.warn("进程退出时环形队列中还有{}个订单没有落库", lost);
+        }
+    }
+
+    @Override
+    public boolean publishedByScript() {
+        return false;
+    }
+
+    @Override
+    public boolean publish(VoucherOrder voucherOrder) {
+        long deadline = 0;
+        while (!offer(voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId())) {
+            // 队列满了，短暂等待消费者腾出位置，超时就让调用方退还名额
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + TimeUnit.MILLISECONDS.toNanos(seckillProperties.getRingBufferPublishTimeoutMillis());
+            } else if (now >= deadline) {
+                fullRejected.increment();
+                return false;
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean publishAll(List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.size() > mask + 1) {
+            fullRejected.increment();
+            return false;
+        }
+        long deadline = 0;
+        while (!offerAll(voucherOrders)) {
+            // 队列放不下整组，和publish一样短暂等待，超时就整组退还
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + TimeUnit.MILLISECONDS.toNanos(seckillProperties.getRingBufferPublishTimeoutMillis());
+            } else if (now >= deadline) {
+                fullRejected.increment();
+                return false;
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasBacklog() {
+        return enqueuePos.get() > completed.get();
+    }
+
+    private boolean offer(long orderId, long userId, long voucherId) {
+        long pos = enqueuePos.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                // 槽位可写，抢到这个位置后写入数据，再把序号改成pos+1通知消费者
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    orderIds[index] = orderId;
+                    userIds[index] = userId;
+                    voucherIds[index] = voucherId;
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = enqueuePos.get();
+            } else if (dif < 0) {
+                // 槽位上一圈的数据还没被消费，队列已满
+                return false;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+    }
+
+    //一次抢连续的n个槽位：n个槽位都可写时把入队位置从pos推到pos+n，抢到后这些槽位只有本线程会写
+    private boolean offerAll(List<VoucherOrder> voucherOrders) {
+        int n = voucherOrders.size();
+        while (true) {
+            long pos = enqueuePos.get();
+            for (int i = 0; i < n; i++) {
+                long dif = sequences.get((int) ((pos + i) & mask)) - (pos + i);
+                if (dif < 0) {
+                    // 有槽位上一圈的数据还没被消费，放不下整组
+                    return false;
+                }
+                if (dif > 0) {
+                    // 别的生产者已经抢走了这个位置，重新读入队位置
+                    pos = -1;
+                    break;
+                }
+            }
+            if (pos < 0 || !enqueuePos.compareAndSet(pos, pos + n)) {
+                continue;
+            }
+            for (int i = 0; i < n; i++) {
+                VoucherOrder voucherOrder = voucherOrders.get(i);
+                int index = (int) ((pos + i) & mask);
+                orderIds[index] = voucherOrder.getId();
+                userIds[index] = voucherOrder.getUserId();
+                voucherIds[index] = voucherOrder.getVoucherId();
+                sequences.set(index, pos + i + 1);
+            }
+            return true;
+        }
+    }
+
+    //最多取max个订单放进orders，返回取到的个数；每个订单新建一个VoucherOrder，落库和重试会一直持有它
+    private int poll(List<VoucherOrder> orders, int max) {
+        int n = 0;
+        while (n < max) {
+            long pos = dequeuePos.get();
+            int index = (int) (pos & mask);
+            long dif = sequences.get(index) - (pos + 1);
+            if (dif == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    orders.add(new VoucherOrder()
+                            .setId(orderIds[index])
+                            .setUserId(userIds[index])
+                            .setVoucherId(voucherIds[index]));
+                    // 把序号改成下一圈的入队位置，槽位可以再次写入
+                    sequences.set(index, pos + mask + 1);
+                    n++;
+                }
+            } else if (dif < 0) {
+                // 队列空了
+                break;
+            }
+        }
+        return n;
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+
+        private final List<VoucherOrder> batch = new ArrayList<>(seckillProperties.getBatchSize());
+        private final PriorityQueue<Retry> retries = new PriorityQueue<>(Comparator.comparingLong((Retry retry) -> retry.dueAt));
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // 1.先重试到时间的失败订单
+                    retryDue();
+                    // 2.从队列中取一批订单
+                    batch.clear();
+                    if (poll(batch, seckillProperties.getBatchSize()) == 0) {
+                        LockSupport.parkNanos(PARK_NANOS);
+                        continue;
+                    }
+                    // 3.落库，异常的订单进入重试
+                    boolean[] handled = voucherOrderPersister.persist(batch);
+                    for (int i = 0; i < batch.size(); i++) {
+                        if (handled[i]) {
+                            completed.incrementAndGet();
+                        } else {
+                            retries.add(new Retry(batch.get(i), 1));
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                }
+            }
+        }
+
+        //重试队列按到期时间排序
+        private void retryDue() {
+            while (!retries.isEmpty() && retries.peek().dueAt <= System.currentTimeMillis()) {
+                Retry retry = retries.poll();
+                try {
+                    voucherOrderPersister.persist(retry.voucherOrder);
+                    completed.incrementAndGet();
+                } catch (Exception e) {
+                    retry.attempts++;
+                    if (retry.attempts < seckillProperties.getMaxDeliveries() || !deadLetter(retry, e)) {
+                        retry.dueAt = System.currentTimeMillis() + seckillProperties.backoffMillis(retry.attempts);
+                        retries.add(retry);
+                    }
+                }
+            }
+        }
+
+        //转入死信，死信也写不进去就继续重试
+        private boolean deadLetter(Retry retry, Exception cause) {
+            VoucherOrder voucherOrder = retry.voucherOrder;
+            try {
+                Map<String, String> fields = new HashMap<>(4);
+                fields.put("userId", voucherOrder.getUserId().toString());
+                fields.put("voucherId", voucherOrder.getVoucherId().toString());
+                fields.put("id", voucherOrder.getId().toString());
+                log.error("订单处理" + retry.attempts + "次仍然失败，转入死信: " + voucherOrder.getId(), cause);
+                voucherOrderDeadLetterService.deadLetter(fields, voucherOrder, "ring-buffer", retry.attempts, cause.toString());
+                voucherOrderPersister.markFailed(voucherOrder);
+                completed.incrementAndGet();
+                return true;
+            } catch (Exception e) {
+                log.error("写入死信失败, orderId=" + voucherOrder.getId(), e);
+                return false;
+            }
+        }
+    }
+
+    private class Retry {
+        private final VoucherOrder voucherOrder;
+        private long attempts;
+        private long dueAt;
+
+        Retry(VoucherOrder voucherOrder, long attempts) {
+            this.voucherOrder = voucherOrder;
+            this.attempts = attempts;
+            this.dueAt = System.currentTimeMillis() + seckillProperties.backoffMillis(attempts);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.SeckillReconcileReport;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.entity.VoucherOrderDeadLetter;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderDeadLetterService;
+import com.hmdp.service.IVoucherOrderQueue;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillSegments;
+import com.hmdp.utils.SeckillVoucherLocalState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券Redis与MySQL对账：
+ * 1.计数：Redis各段库存之和、已下单用户数，MySQL库存、订单数
+ * 2.Redis -> MySQL：SSCAN已下单用户集合，每批用 user_id in (...) 查订单(走uk_user_voucher索引)，
+ *   找出Redis扣了名额但没有订单的用户(比如落库时库存不足被拒绝的订单)
+ * 3.MySQL -> Redis：按主键游标分批读订单，pipeline SISMEMBER，找出有订单但Redis里没有的用户
+ * 全程按批处理，不会把几百万用户读进内存，也不加任何锁，不影响正在进行的秒杀。
+ * 修复：Redis里多出来的用户退还名额(seckill_return.lua，订单队列还有积压时不退还)，Redis里缺的用户补进集合。
+ * 定时对账和手动对账都在对账线程里执行(确认差异前要等grace-millis)，手动对账的结果保留最近的几张券，供管理接口查询
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT = new DefaultRedisScript<>();
+    static {
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private IVoucherOrderDeadLetterService voucherOrderDeadLetterService;
+
+    @Resource
+    private SeckillVoucherLocalState seckillVoucherLocalState;
+
+    @Resource
+    private IVoucherOrderQueue voucherOrderQueue;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    //手动对账最多保留多少张券的结果
+    private static final int LAST_REPORTS = 100;
+
+    private ScheduledExecutorService reconcileExecutor;
+    private final Cache<Long, SeckillReconcileReport> lastReports = CacheUtil.newLRUCache(LAST_REPORTS);
+
+    @PostConstruct
+    private void init() {
+        reconcileExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-reconciler-").build());
+        SeckillProperties.Reconcile config = seckillProperties.getReconcile();
+        if (!config.isEnabled()) {
+            return;
+        }
+        long interval = config.getIntervalMillis();
+        reconcileExecutor.scheduleWithFixedDelay(this::reconcileQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        reconcileExecutor.shutdownNow();
+    }
+
+    /**
+     * 提交单张秒杀券的对账，在对账线程里执行，不阻塞调用方，结果用lastReport查询
+     * @return 秒杀券不存在时返回false
+     */
+    public boolean reconcileAsync(Long voucherId, boolean repair) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return false;
+        }
+        reconcileExecutor.submit(() -> {
+            try {
+                SeckillReconcileReport report = reconcile(voucher, repair);
+                log.info("秒杀券对账完成: {}", report);
+                lastReports.put(voucherId, report);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("秒杀券对账失败, voucherId=" + voucherId, e);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 最近一次手动对账的结果，还没有结果时返回null
+     */
+    public SeckillReconcileReport lastReport(Long voucherId) {
+        return lastReports.get(voucherId, false);
+    }
+
+    private void reconcileQuietly() {
+        try {
+            // 集群内每个周期只有一个实例执行，锁不主动释放，到期自动失效
+            Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_SECKILL_RECONCILE_KEY, "1",
+                    seckillProperties.getReconcile().getIntervalMillis(), TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(locked)) {
+                reconcileAll(seckillProperties.getReconcile().isRepair());
+            }
+        } catch (Exception e) {
+            log.error("秒杀券对账失败", e);
+        }
+    }
+
+    /**
+     * 对账所有未结束或者刚结束的秒杀券
+     * @param repair 是否修复
+     * @return 有差异的秒杀券的对账结果
+     */
+    public List<SeckillReconcileReport> reconcileAll(boolean repair) throws InterruptedException {
+        LocalDateTime from = LocalDateTime.now().minusHours(seckillProperties.getReconcile().getLookbackHours());
+        List<SeckillVoucher> vouchers = seckillVoucherService.query().gt("end_time", from).list();
+        List<SeckillReconcileReport> reports = new ArrayList<>();
+        for (SeckillVoucher voucher : vouchers) {
+            SeckillReconcileReport report = reconcile(voucher, repair);
+            if (report.getMissingInDb() > 0 || report.getMissingInRedis() > 0) {
+                log.warn("秒杀券对账发现差异: {}", report);
+                reports.add(report);
+            }
+        }
+        return reports;
+    }
+
+    private SeckillReconcileReport reconcile(SeckillVoucher voucher, boolean repair) throws InterruptedException {
+        SeckillProperties.Reconcile config = seckillProperties.getReconcile();
+        Long voucherId = voucher.getVoucherId();
+        int segments = voucher.getSegments() == null || voucher.getSegments() < 1 ? 1 : voucher.getSegments();
+        SeckillReconcileReport report = new SeckillReconcileReport();
+        report.setVoucherId(voucherId);
+
+        // 1.计数，Redis一次pipeline
+        List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < segments; i++) {
+                conn.get(stockKey(voucherId, i, segments));
+                conn.sCard(orderKey(voucherId, i, segments));
+            }
+            return null;
+        });
+        long redisStock = 0;
+        long redisBuyers = 0;
+        for (int i = 0; i < segments; i++) {
+            Object stock = counts.get(2 * i);
+            redisStock += stock == null ? 0 : Long.parseLong(stock.toString());
+            redisBuyers += (Long) counts.get(2 * i + 1);
+        }
+        report.setRedisStock(redisStock);
+        report.setRedisBuyers(redisBuyers);
+        report.setDbStock(voucher.getStock());
+        report.setDbOrders((long) voucherOrderService.query().eq("voucher_id", voucherId).ne("status", 4).count());
+
+        // 2.Redis -> MySQL，SSCAN各段的用户集合
+        Set<Long> candidates = new LinkedHashSet<>();
+        for (int i = 0; i < segments; i++) {
+            ScanOptions options = ScanOptions.scanOptions().count(config.getChunkSize()).build();
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(orderKey(voucherId, i, segments), options)) {
+                List<Long> chunk = new ArrayList<>(config.getChunkSize());
+                while (cursor.hasNext()) {
+                    chunk.add(Long.valueOf(cursor.next()));
+                    if (chunk.size() >= config.getChunkSize()) {
+                        collectMissingInDb(voucherId, chunk, candidates, report);
+                        chunk.clear();
+                    }
+                }
+                collectMissingInDb(voucherId, chunk, candidates, report);
+            } catch (Exception e) {
+                throw new IllegalStateException("扫描已下单用户失败, voucherId=" + voucherId, e);
+            }
+        }
+
+        // 3.MySQL -> Redis，按主键游标分批读订单
+        long lastId = 0;
+        while (true) {
+            // select id, user_id, status from tb_voucher_order where voucher_id = ? and id > ? order by id limit n
+            List<VoucherOrder> page = voucherOrderService.query().select("id", "user_id", "status")
+                    .eq("voucher_id", voucherId).gt("id", lastId)
+                    .orderByAsc("id").last("limit " + config.getChunkSize())
+                    .list();
+            if (page.isEmpty()) {
+                break;
+            }
+            // 超时取消的订单已经把用户移出了集合，不算差异
+            List<VoucherOrder> orders = new ArrayList<>(page.size());
+            for (VoucherOrder order : page) {
+                if (order.getStatus() == null || order.getStatus() != 4) {
+                    orders.add(order);
+                }
+            }
+            checkMissingInRedis(voucherId, segments, orders, repair, report);
+            if (page.size() < config.getChunkSize()) {
+                break;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+
+        // 4.Redis里多出来的用户等一会再确认，排除正在落库和在死信中等待重放的订单
+        if (!candidates.isEmpty()) {
+            Thread.sleep(config.getGraceMillis());
+            List<Long> confirmed = confirmMissingInDb(voucherId, candidates);
+            report.setMissingInDb(report.getMissingInDb() - (candidates.size() - confirmed.size()));
+            addSample(report.getMissingInDbSample(), confirmed);
+            if (repair && !confirmed.isEmpty()) {
+                // 队列里还有没处理完的订单时不退还名额，否则这些订单落库后会超卖
+                if (voucherOrderQueue.hasBacklog()) {
+                    report.setBacklog(true);
+                } else {
+                    returnQuota(voucherId, segments, confirmed, report);
+                }
+            }
+        }
+        return report;
+    }
+
+    //一批Redis中的用户，查出其中没有订单的，计数并记录为待确认用户
+    private void collectMissingInDb(Long voucherId, List<Long> users, Set<Long> candidates, SeckillReconcileReport report) {
+        if (users.isEmpty()) {
+            return;
+        }
+        Set<Long> missing = new HashSet<>(users);
+        missing.removeAll(queryBuyers(voucherId, users));
+        report.setMissingInDb(report.getMissingInDb() + missing.size());
+        for (Long userId : missing) {
+            if (candidates.size() >= seckillProperties.getReconcile().getMaxCandidates()) {
+                break;
+            }
+            candidates.add(userId);
+        }
+    }
+
+    //一批订单，pipeline检查用户是否在主段的集合里，不在的按需补上
+    private void checkMissingInRedis(Long voucherId, int segments, List<VoucherOrder> orders,
+                                     boolean repair, SeckillReconcileReport report) {
+        List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                conn.sIsMember(homeOrderKey(voucherId, order.getUserId(), segments), order.getUserId().toString());
+            }
+            return null;
+        });
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < orders.size(); i++) {
+            if (!Boolean.TRUE.equals(members.get(i))) {
+                missing.add(orders.get(i).getUserId());
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        report.setMissingInRedis(report.getMissingInRedis() + missing.size());
+        addSample(report.getMissingInRedisSample(), missing);
+        if (repair) {
+            // 补进集合，防止这些用户再抢一次
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Long userId : missing) {
+                    conn.sAdd(homeOrderKey(voucherId, userId, segments), userId.toString());
+                }
+                return null;
+            });
+            report.setRepaired(report.getRepaired() + missing.size());
+        }
+    }
+
+    //再查一次订单表和死信表，剩下的才是真正丢失的订单
+    private List<Long> confirmMissingInDb(Long voucherId, Collection<Long> candidates) {
+        List<Long> confirmed = new ArrayList<>(candidates.size());
+        List<Long> chunk = new ArrayList<>(seckillProperties.getReconcile().getChunkSize());
+        for (Long userId : candidates) {
+            chunk.add(userId);
+            if (chunk.size() >= seckillProperties.getReconcile().getChunkSize()) {
+                confirmed.addAll(confirmChunk(voucherId, chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            confirmed.addAll(confirmChunk(voucherId, chunk));
+        }
+        return confirmed;
+    }
+
+    private List<Long> confirmChunk(Long voucherId, List<Long> users) {
+        List<Long> missing = new ArrayList<>(users);
+        missing.removeAll(queryBuyers(voucherId, users));
+        if (missing.isEmpty()) {
+            return missing;
+        }
+        // select user_id from tb_voucher_order_dead_letter where voucher_id = ? and status = 0 and user_id in (...)
+        List<VoucherOrderDeadLetter> deadLetters = voucherOrderDeadLetterService.query().select("user_id")
+                .eq("voucher_id", voucherId).eq("status", 0).in("user_id", missing)
+                .list();
+        for (VoucherOrderDeadLetter deadLetter : deadLetters) {
+            missing.remove(deadLetter.getUserId());
+        }
+        return missing;
+    }
+
+    // select user_id from tb_voucher_order where voucher_id = ? and user_id in (...) and status != 4
+    private Set<Long> queryBuyers(Long voucherId, Collection<Long> users) {
+        Set<Long> buyers = new HashSet<>(users.size());
+        for (VoucherOrder order : voucherOrderService.query().select("user_id")
+                .eq("voucher_id", voucherId).in("user_id", users).ne("status", 4).list()) {
+            buyers.add(order.getUserId());
+        }
+        return buyers;
+    }
+
+    //退还名额：移出集合并归还库存，归还了库存就清掉各实例的本地售罄标记
+    private void returnQuota(Long voucherId, int segments, List<Long> users, SeckillReconcileReport report) {
+        long returned = 0;
+        for (Long userId : users) {
+            int home = SeckillSegments.homeSegment(userId, segments);
+            Long result = stringRedisTemplate.execute(
+                    RETURN_SCRIPT,
+                    Arrays.asList(stockKey(voucherId, home, segments), orderKey(voucherId, home, segments)),
+                    userId.toString()
+            );
+            if (result != null && result == 1) {
+                returned++;
+            }
+        }
+        if (returned > 0) {
+            log.warn("秒杀券{}退还了{}个没有订单的名额", voucherId, returned);
+            seckillVoucherLocalState.reset(voucherId);
+        }
+        report.setRepaired(report.getRepaired() + returned);
+    }
+
+    private void addSample(List<Long> sample, List<Long> users) {
+        int sampleSize = seckillProperties.getReconcile().getSampleSize();
+        for (int i = 0; i < users.size() && sample.size() < sampleSize; i++) {
+            sample.add(users.get(i));
+        }
+    }
+
+    private static String stockKey(Long voucherId, int segment, int segments) {
+        return segments == 1 ? SECKILL_STOCK_KEY + voucherId : SeckillSegments.stockKey(voucherId, segment);
+    }
+
+    private static String orderKey(Long voucherId, int segment, int segments) {
+        return segments == 1 ? SECKILL_ORDER_KEY + voucherId : SeckillSegments.orderKey(voucherId, segment);
+    }
+
+    private static String homeOrderKey(Long voucherId, Long userId, int segments) {
+        return orderKey(voucherId, SeckillSegments.homeSegment(userId, segments), segments);
+    }
+}
@@ -0,0 +1,191 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.service.IVoucherOrderQueue;
+import com.hmdp.utils.MetricsRegistry;
+import com.hmdp.utils.RedisIdWorker;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 秒杀请求合批：同一张券的并发请求攒成一批，一次INCRBY生成订单id，一次seckill_batch.lua完成下单，
+ * 每批只占用两次Redis往返，而不是每个请求两次。
+ * 不额外开线程：一批里第一个到达的请求线程是leader，等待window-micros(攒满max-size会被提前唤醒)后
+ * 关闭这一批并执行脚本，然后把结果分发给同批的其他请求线程
+ */
+@Component
+public class SeckillRequestBatcher {
+
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT = new DefaultRedisScript<>();
+    static {
+        SECKILL_BATCH_SCRIPT.setLocation(new ClassPathResource("seckill_batch.lua"));
+        SECKILL_BATCH_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private IVoucherOrderQueue voucherOrderQueue;
+
+    @Resource
+    private UnpaidOrderCanceller unpaidOrderCanceller;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private MetricsRegistry metricsRegistry;
+
+    //每张券当前正在收集请求的批次
+    private final ConcurrentHashMap<Long, Batch> collecting = new ConcurrentHashMap<>();
+
+    private LongAdder flushes;
+    private LongAdder batchedRequests;
+
+    @PostConstruct
+    private void init() {
+        flushes = metricsRegistry.counter("seckill.batch.flushes");
+        batchedRequests = metricsRegistry.counter("seckill.batch.requests");
+    }
+
+    /**
+     * 提交一个下单请求，等待所在批次的执行结果。
+     * 等待超时时，批次还没开始执行就撤出请求并抛出TimeoutException；已经开始执行就一直等到结果
+     * @return 下单成功返回订单id，失败返回 -r，r为seckill.lua的返回值
+     */
+    public long submit(Long voucherId, Long userId) throws Exception {
+        SeckillProperties.Batch config = seckillProperties.getBatch();
+        Request request = new Request(userId);
+        Batch batch;
+        boolean leader;
+        // 1.加入当前批次，批次已经关闭就换一个新的
+        while (true) {
+            batch = collecting.computeIfAbsent(voucherId, Batch::new);
+            synchronized (batch) {
+                if (batch.closed) {
+                    continue;
+                }
+                batch.requests.add(request);
+                leader = batch.requests.size() == 1;
+                if (leader) {
+                    batch.leader = Thread.currentThread();
+                } else if (batch.requests.size() >= config.getMaxSize()) {
+                    // 攒满了，关闭批次并叫醒leader
+                    close(batch);
+                    LockSupport.unpark(batch.leader);
+                }
+            }
+            break;
+        }
+
+        // 2.非leader等待结果
+        if (!leader) {
+            try {
+                return request.result.get(config.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 2.1.批次还没开始执行，把自己从批次里撤出来，这个请求在Redis里什么都没做
+                synchronized (batch) {
+                    if (!batch.started) {
+                        batch.requests.remove(request);
+                        throw e;
+                    }
+                }
+                // 2.2.脚本已经在执行了，名额可能已经扣掉，必须拿到结果交给调用方入队，不能当作超时丢掉
+                return request.result.join();
+            }
+        }
+
+        // 3.leader等待收集窗口结束，然后关闭批次并执行
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(config.getWindowMicros());
+        List<Request> requests;
+        while (true) {
+            synchronized (batch) {
+                if (batch.closed || System.nanoTime() >= deadline) {
+                    close(batch);
+                    batch.started = true;
+                    requests = batch.requests;
+                    break;
+                }
+            }
+            LockSupport.parkNanos(deadline - System.nanoTime());
+        }
+        try {
+            execute(voucherId, requests);
+        } catch (Exception e) {
+            requests.forEach(r -> r.result.completeExceptionally(e));
+        }
+        return request.result.get();
+    }
+
+    private void close(Batch batch) {
+        batch.closed = true;
+        collecting.remove(batch.voucherId, batch);
+    }
+
+    private void execute(Long voucherId, List<Request> requests) {
+        int n = requests.size();
+        flushes.increment();
+        batchedRequests.add(n);
+        // 1.一次生成整批的订单id
+        long[] orderIds = redisIdWorker.nextIds("order", n);
+
+        // 2.执行批量脚本 ARGV: voucherId now statusTtl publish payTimeout userId1 orderId1 userId2 orderId2 ...
+        String[] args = new String[5 + 2 * n];
+        args[0] = voucherId.toString();
+        args[1] = String.valueOf(System.currentTimeMillis());
+        args[2] = String.valueOf(seckillProperties.getStatusTtlSeconds());
+        args[3] = voucherOrderQueue.publishedByScript() ? "1" : "0";
+        args[4] = String.valueOf(unpaidOrderCanceller.payTimeoutMillis());
+        for (int i = 0; i < n; i++) {
+            args[5 + 2 * i] = requests.get(i).userId.toString();
+            args[6 + 2 * i] = String.valueOf(orderIds[i]);
+        }
+        List<?> results = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, Collections.emptyList(), (Object[]) args);
+
+        // 3.分发结果
+        for (int i = 0; i < n; i++) {
+            long r = ((Number) results.get(i)).longValue();
+            requests.get(i).result.complete(r == 0 ? orderIds[i] : -r);
+        }
+    }
+
+    private static class Batch {
+        private final Long voucherId;
+        private final List<Request> requests = new ArrayList<>();
+        private Thread leader;
+        private boolean closed;
+        //leader已经取走请求列表准备执行脚本，之后不能再撤出请求
+        private boolean started;
+
+        Batch(Long voucherId) {
+            this.voucherId = voucherId;
+        }
+    }
+
+    private static class Request {
+        private final Long userId;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        Request(Long userId) {
+            this.userId = userId;
+        }
+    }
+}
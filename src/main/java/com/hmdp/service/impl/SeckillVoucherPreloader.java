@@ -0,0 +1,221 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillSegments;
+import com.hmdp.utils.SeckillVoucherLocalState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券预热：把库存、已下单用户集合、秒杀时间窗口从MySQL重建到Redis，
+ * 这样Lua脚本只靠Redis就能判断能不能下单，Redis被清空或重启后也不会因为key丢失而报错。
+ * 启动时预热所有未结束的秒杀券，之后可以通过接口或者Lua返回"未预热"时按需预热单张券
+ */
+@Slf4j
+@Component
+public class SeckillVoucherPreloader {
+
+    //每次从tb_voucher_order里按主键游标读取的用户数
+    private static final int USER_CHUNK_SIZE = 5000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillVoucherLocalState seckillVoucherLocalState;
+
+    @Resource
+    private UnpaidOrderCanceller unpaidOrderCanceller;
+
+    //按需预热的线程池，同一张券同一时间只预热一次
+    private ExecutorService preloadExecutor;
+    private final Set<Long> loading = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        preloadExecutor = Executors.newSingleThreadExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-preload-").build());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        preloadExecutor.shutdownNow();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        try {
+            int count = preloadAll();
+            log.info("秒杀券预热完成，共{}张", count);
+        } catch (Exception e) {
+            log.error("秒杀券预热失败", e);
+        }
+    }
+
+    /**
+     * 预热所有还没结束的秒杀券
+     * @return 预热的秒杀券数量
+     */
+    public int preloadAll() {
+        List<SeckillVoucher> vouchers = seckillVoucherService.query().gt("end_time", LocalDateTime.now()).list();
+        for (SeckillVoucher voucher : vouchers) {
+            preload(voucher, true);
+        }
+        return vouchers.size();
+    }
+
+    /**
+     * 预热单张秒杀券
+     * @return 秒杀券不存在时返回false
+     */
+    public boolean preload(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return false;
+        }
+        preload(voucher, true);
+        return true;
+    }
+
+    //Lua返回"未预热"时调用，异步预热，不阻塞请求线程
+    public void preloadAsync(Long voucherId) {
+        if (!loading.add(voucherId)) {
+            return;
+        }
+        try {
+            preloadExecutor.submit(() -> {
+                try {
+                    preload(voucherId);
+                } catch (Exception e) {
+                    log.error("秒杀券预热失败, voucherId=" + voucherId, e);
+                } finally {
+                    loading.remove(voucherId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 应用正在关闭，不再预热
+            loading.remove(voucherId);
+        }
+    }
+
+    /**
+     * 把一张秒杀券写入Redis。写入顺序是 用户集合 -> 时间窗口 -> 库存，
+     * 库存key最后写，库存不存在时Lua会返回"未预热"，保证不会在用户集合没加载完时放人进来。
+     * 库存用SETNX写，Redis里已有的库存(可能还有没落库的订单)不会被MySQL的值覆盖
+     * @param withBuyers 是否从tb_voucher_order加载已下单用户，新建的秒杀券不需要
+     */
+    public void preload(SeckillVoucher voucher, boolean withBuyers) {
+        Long voucherId = voucher.getVoucherId();
+        int segments = voucher.getSegments() == null || voucher.getSegments() < 1 ? 1 : voucher.getSegments();
+
+        // 1.已下单用户集合，按主键游标分批读，每批一次pipeline写入
+        if (withBuyers) {
+            loadBuyers(voucherId, segments);
+        }
+
+        // 2.时间窗口 + 库存，一次pipeline写入
+        Map<String, String> window = new HashMap<>(2);
+        if (voucher.getBeginTime() != null) {
+            window.put("begin", String.valueOf(toMillis(voucher.getBeginTime())));
+        }
+        if (voucher.getEndTime() != null) {
+            window.put("end", String.valueOf(toMillis(voucher.getEndTime())));
+        }
+        int[] stocks = SeckillSegments.split(voucher.getStock(), segments);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < segments; i++) {
+                String timeKey = segments == 1 ? SECKILL_TIME_KEY + voucherId : SeckillSegments.timeKey(voucherId, i);
+                if (!window.isEmpty()) {
+                    conn.hMSet(timeKey, window);
+                }
+            }
+            for (int i = 0; i < segments; i++) {
+                String stockKey = segments == 1 ? SECKILL_STOCK_KEY + voucherId : SeckillSegments.stockKey(voucherId, i);
+                conn.setNX(stockKey, String.valueOf(stocks[i]));
+            }
+            return null;
+        });
+
+        // 3.顺便把本地状态表也预热了，请求进来不用再查数据库
+        seckillVoucherLocalState.warm(voucher);
+    }
+
+    private void loadBuyers(Long voucherId, int segments) {
+        long lastId = 0;
+        while (true) {
+            // select id, user_id, voucher_id, status, create_time from tb_voucher_order where voucher_id = ? and id > ? order by id limit n
+            List<VoucherOrder> orders = voucherOrderService.query().select("id", "user_id", "voucher_id", "status", "create_time")
+                    .eq("voucher_id", voucherId).gt("id", lastId)
+                    .orderByAsc("id").last("limit " + USER_CHUNK_SIZE)
+                    .list();
+            if (orders.isEmpty()) {
+                return;
+            }
+            // 按用户所在的段分组，每段一次SADD，超时取消的订单不算
+            Map<String, List<byte[]>> members = new HashMap<>();
+            List<VoucherOrder> unpaid = new ArrayList<>();
+            for (VoucherOrder order : orders) {
+                if (order.getStatus() != null && order.getStatus() == 4) {
+                    continue;
+                }
+                if (order.getStatus() != null && order.getStatus() == 1) {
+                    unpaid.add(order);
+                }
+                String orderKey = segments == 1
+                        ? SECKILL_ORDER_KEY + voucherId
+                        : SeckillSegments.orderKey(voucherId, SeckillSegments.homeSegment(order.getUserId(), segments));
+                members.computeIfAbsent(orderKey, k -> new ArrayList<>())
+                        .add(order.getUserId().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                members.forEach((key, users) ->
+                        connection.sAdd(key.getBytes(StandardCharsets.UTF_8), users.toArray(new byte[0][])));
+                return null;
+            });
+            // 未支付的订单重新登记到延时队列(Redis被清空时延时队列也丢了)
+            unpaidOrderCanceller.schedule(unpaid);
+            if (orders.size() < USER_CHUNK_SIZE) {
+                return;
+            }
+            lastId = orders.get(orders.size() - 1).getId();
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
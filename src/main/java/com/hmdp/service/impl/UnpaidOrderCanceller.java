@@ -0,0 +1,284 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.MetricsRegistry;
+import com.hmdp.utils.OrderStatusStore;
+import com.hmdp.utils.SeckillSegments;
+import com.hmdp.utils.SeckillVoucherLocalState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 未支付订单超时取消：
+ * 延时队列是一个ZSET seckill:unpaid，score是支付截止时间，member是 订单id:券id:用户id，
+ * 由秒杀脚本在扣名额的同时登记(分段库存的订单由Java登记)，几十万个待支付订单也只占Redis里的一个key，JVM里不为每个订单建定时器。
+ * 每个实例的工作线程用unpaid_claim.lua批量认领到期的订单(认领就是把score改成租期截止时间)，然后逐个处理：
+ * 1.订单还没支付：在一个事务里把订单改成已取消(status 1 -> 4)并归还MySQL库存，再退还Redis中的名额；
+ *   券的库存key、延时队列、订单状态不在同一个slot，不能放进一个脚本，分成ZREM延时队列、
+ *   seckill_return.lua退还(主段)名额、改订单状态三步，每步只碰一个slot
+ * 2.订单已经取消过(上次Redis那一步失败了)：只退还Redis中的名额
+ * 3.订单已经支付或者有了其他状态：移出延时队列
+ * 4.订单还不在数据库里：落库失败的移出延时队列，还在排队或者状态查不到的不处理，租期过后重新认领
+ * 任何一步失败都不需要额外处理，租期过后会被重新认领，MySQL用status = 1做条件、Redis用ZREM做条件，重复处理不会多还库存
+ */
+@Slf4j
+@Component
+public class UnpaidOrderCanceller {
+
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT = new DefaultRedisScript<>();
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT = new DefaultRedisScript<>();
+    static {
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("unpaid_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private OrderStatusStore orderStatusStore;
+
+    //订单状态 1：未支付 4：已取消
+    private static final int UNPAID = 1;
+    private static final int CANCELLED = 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillVoucherLocalState seckillVoucherLocalState;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private MetricsRegistry metricsRegistry;
+
+    private ExecutorService workerExecutor;
+    private volatile boolean running = true;
+    private LongAdder cancelled;
+
+    @PostConstruct
+    private void init() {
+        cancelled = metricsRegistry.counter("seckill.unpaid.cancelled");
+        SeckillProperties.Unpaid config = seckillProperties.getUnpaid();
+        if (!config.isEnabled()) {
+            return;
+        }
+        workerExecutor = Executors.newFixedThreadPool(config.getWorkerThreads(),
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-unpaid-").build());
+        for (int i = 0; i < config.getWorkerThreads(); i++) {
+            workerExecutor.submit(this::work);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (workerExecutor != null) {
+            workerExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 传给秒杀脚本的支付超时时间(毫秒)，没开启超时取消时返回0，脚本就不登记
+     */
+    public long payTimeoutMillis() {
+        SeckillProperties.Unpaid config = seckillProperties.getUnpaid();
+        return config.isEnabled() ? config.getPayTimeoutMillis() : 0;
+    }
+
+    /**
+     * 登记一个未支付订单，不经过秒杀脚本的下单(分段库存、预热时从数据库恢复)用这个方法
+     * @param createdAt 下单时间(毫秒)，截止时间从这里开始算
+     */
+    public void schedule(Long orderId, Long voucherId, Long userId, long createdAt) {
+        long timeout = payTimeoutMillis();
+        if (timeout > 0) {
+            stringRedisTemplate.opsForZSet().add(SECKILL_UNPAID_KEY, member(orderId, voucherId, userId), createdAt + timeout);
+        }
+    }
+
+    /**
+     * 批量登记数据库中的未支付订单，截止时间从订单的create_time开始算，一次pipeline写入
+     */
+    public void schedule(List<VoucherOrder> orders) {
+        long timeout = payTimeoutMillis();
+        if (timeout <= 0 || orders.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                long createdAt = order.getCreateTime() == null ? System.currentTimeMillis()
+                        : order.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                conn.zAdd(SECKILL_UNPAID_KEY, createdAt + timeout, member(order.getId(), order.getVoucherId(), order.getUserId()));
+            }
+            return null;
+        });
+    }
+
+    private void work() {
+        SeckillProperties.Unpaid config = seckillProperties.getUnpaid();
+        while (running) {
+            try {
+                // 1.认领一批到期的订单
+                long now = System.currentTimeMillis();
+                List<?> members = stringRedisTemplate.execute(
+                        CLAIM_SCRIPT,
+                        Collections.singletonList(SECKILL_UNPAID_KEY),
+                        String.valueOf(now), String.valueOf(config.getBatchSize()),
+                        String.valueOf(now + config.getLeaseMillis())
+                );
+                if (members == null || members.isEmpty()) {
+                    TimeUnit.MILLISECONDS.sleep(config.getPollIntervalMillis());
+                    continue;
+                }
+                // 2.逐个取消
+                cancel(members);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("取消未支付订单失败", e);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(config.getPollIntervalMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void cancel(List<?> members) {
+        // 1.解析member
+        List<VoucherOrder> orders = new ArrayList<>(members.size());
+        Map<Long, String> memberOf = new HashMap<>(members.size() * 2);
+        for (Object member : members) {
+            String[] parts = member.toString().split(":");
+            orders.add(new VoucherOrder()
+                    .setId(Long.valueOf(parts[0]))
+                    .setVoucherId(Long.valueOf(parts[1]))
+                    .setUserId(Long.valueOf(parts[2])));
+            memberOf.put(Long.valueOf(parts[0]), member.toString());
+        }
+
+        // 2.一次查出这批订单在数据库中的状态 select id, status from tb_voucher_order where id in (...)
+        Map<Long, Integer> statuses = new HashMap<>(members.size() * 2);
+        voucherOrderService.query().select("id", "status").in("id", memberOf.keySet()).list()
+                .forEach(order -> statuses.put(order.getId(), order.getStatus()));
+
+        // 3.查出涉及的秒杀券的库存分段数，退还名额时要找到用户的主段
+        Map<Long, Integer> segmentsOf = new HashMap<>();
+        Set<Long> voucherIds = new HashSet<>();
+        orders.forEach(order -> voucherIds.add(order.getVoucherId()));
+        for (SeckillVoucher voucher : seckillVoucherService.listByIds(voucherIds)) {
+            Integer segments = voucher.getSegments();
+            segmentsOf.put(voucher.getVoucherId(), segments == null || segments < 1 ? 1 : segments);
+        }
+
+        // 4.逐个处理
+        Set<Long> returnedVouchers = new HashSet<>();
+        for (VoucherOrder order : orders) {
+            String member = memberOf.get(order.getId());
+            try {
+                Integer status = statuses.get(order.getId());
+                if (status == null) {
+                    // 4.1.数据库里还没有，确定落库失败被拒绝的才移出(名额由对账任务退还)；
+                    // 还在排队或者状态已经过期查不到的等下一次认领，不能移出，否则这个订单再也不会被超时取消
+                    if (isFailed(order)) {
+                        stringRedisTemplate.opsForZSet().remove(SECKILL_UNPAID_KEY, member);
+                    }
+                    continue;
+                }
+                // 4.2.未支付的先在数据库里取消，取消不了说明刚刚支付了
+                if (status == UNPAID && !voucherOrderService.cancelUnpaidOrder(order.getId(), order.getVoucherId())) {
+                    stringRedisTemplate.opsForZSet().remove(SECKILL_UNPAID_KEY, member);
+                    continue;
+                }
+                if (status != UNPAID && status != CANCELLED) {
+                    // 4.3.已经支付、核销或者退款的订单不再需要超时取消
+                    stringRedisTemplate.opsForZSet().remove(SECKILL_UNPAID_KEY, member);
+                    continue;
+                }
+                // 4.4.退还Redis中的名额
+                if (returnQuota(order, member, segmentsOf.getOrDefault(order.getVoucherId(), 1))) {
+                    cancelled.increment();
+                    returnedVouchers.add(order.getVoucherId());
+                }
+            } catch (Exception e) {
+                log.error("取消未支付订单失败, orderId=" + order.getId(), e);
+            }
+        }
+
+        // 5.归还了库存，清掉各实例的本地售罄标记
+        returnedVouchers.forEach(seckillVoucherLocalState::reset);
+    }
+
+    private boolean isFailed(VoucherOrder order) {
+        Object status = stringRedisTemplate.opsForHash().get(SECKILL_STATUS_KEY + order.getId(), "status");
+        return OrderStatusStore.FAILED.equals(status);
+    }
+
+    private boolean returnQuota(VoucherOrder order, String member, int segments) {
+        Long voucherId = order.getVoucherId();
+        Long userId = order.getUserId();
+        // 库存key和延时队列、订单状态不在同一个slot，不能放进一个脚本
+        // 1.先移出延时队列，移出成功才退还，防止重复处理；之后的步骤失败时名额由对账任务退还
+        Long removed = stringRedisTemplate.opsForZSet().remove(SECKILL_UNPAID_KEY, member);
+        if (removed == null || removed == 0) {
+            return false;
+        }
+        // 2.移出已下单集合并归还库存，分段库存的券在用户的主段里退还
+        int home = SeckillSegments.homeSegment(userId, segments);
+        stringRedisTemplate.execute(
+                RETURN_SCRIPT,
+                segments == 1
+                        ? Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId)
+                        : Arrays.asList(SeckillSegments.stockKey(voucherId, home), SeckillSegments.orderKey(voucherId, home)),
+                userId.toString()
+        );
+        // 3.订单状态改成已取消，客户端轮询能看到
+        orderStatusStore.cancelled(order.getId());
+        return true;
+    }
+
+    private static String member(Long orderId, Long voucherId, Long userId) {
+        return orderId + ":" + voucherId + ":" + userId;
+    }
+}
@@ -0,0 +1,131 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.entity.VoucherOrderDeadLetter;
+import com.hmdp.mapper.VoucherOrderDeadLetterMapper;
+import com.hmdp.service.IVoucherOrderDeadLetterService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusStore;
+import com.hmdp.utils.SystemConstants;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_DLQ_KEY;
+
+/**
+ * <p>
+ * 秒杀订单死信 服务实现类。
+ * 死信stream是重放的依据，死信表只用于查询和统计，写表失败不影响死信本身
+ * </p>
+ */
+@Service
+public class VoucherOrderDeadLetterServiceImpl extends ServiceImpl<VoucherOrderDeadLetterMapper, VoucherOrderDeadLetter> implements IVoucherOrderDeadLetterService {
+
+    private static final int PENDING = 0;
+    private static final int REPLAYED = 1;
+    private static final int REJECTED = 2;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private OrderStatusStore orderStatusStore;
+
+    @Override
+    public void deadLetter(Map<?, ?> fields, VoucherOrder voucherOrder, String streamId, long deliveries, String error) {
+        error = StrUtil.maxLength(StrUtil.nullToEmpty(error), 500);
+        // 1.写入死信stream，失败直接抛出，原消息不会被ACK
+        Map<String, String> body = new HashMap<>(fields.size() + 3);
+        fields.forEach((k, v) -> body.put(k.toString(), v.toString()));
+        body.put("streamId", streamId);
+        body.put("deliveries", String.valueOf(deliveries));
+        body.put("error", error);
+        stringRedisTemplate.opsForStream().add(STREAM_ORDERS_DLQ_KEY, body);
+
+        // 2.写入死信表
+        try {
+            save(new VoucherOrderDeadLetter()
+                    .setOrderId(voucherOrder.getId())
+                    .setUserId(voucherOrder.getUserId())
+                    .setVoucherId(voucherOrder.getVoucherId())
+                    .setStreamId(streamId)
+                    .setDeliveries((int) deliveries)
+                    .setError(error)
+                    .setStatus(PENDING));
+        } catch (Exception e) {
+            log.error("写入死信表失败, orderId=" + voucherOrder.getId(), e);
+        }
+    }
+
+    @Override
+    public List<VoucherOrderDeadLetter> queryPending(int current) {
+        return query()
+                .eq("status", PENDING)
+                .orderByAsc("id")
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE))
+                .getRecords();
+    }
+
+    @Override
+    public Map<String, Integer> replay(int count) {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        result.put("replayed", 0);
+        result.put("rejected", 0);
+        result.put("failed", 0);
+        // 1.XRANGE stream.orders.dlq - + COUNT count
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(STREAM_ORDERS_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        if (records == null) {
+            return result;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            // 2.重新落库，还是失败的留在死信里
+            boolean success;
+            try {
+                success = voucherOrderService.createVoucherOrder(voucherOrder);
+            } catch (Exception e) {
+                log.error("重放死信失败, orderId=" + voucherOrder.getId(), e);
+                result.merge("failed", 1, Integer::sum);
+                // 2.1.移到死信stream的末尾，否则下次重放还是从这几条开始，后面的永远轮不到
+                moveToTail(record, e);
+                continue;
+            }
+            result.merge(success ? "replayed" : "rejected", 1, Integer::sum);
+            // 3.更新订单状态和死信表，再从死信stream中删除
+            List<Long> orderIds = Collections.singletonList(voucherOrder.getId());
+            orderStatusStore.update(success ? orderIds : Collections.emptyList(), success ? Collections.emptyList() : orderIds);
+            update().set("status", success ? REPLAYED : REJECTED)
+                    .eq("order_id", voucherOrder.getId()).eq("status", PENDING)
+                    .update();
+            stringRedisTemplate.opsForStream().delete(STREAM_ORDERS_DLQ_KEY, record.getId());
+        }
+        return result;
+    }
+
+    //重新XADD到死信stream末尾(记下这次的失败原因)，再删掉原来的记录
+    private void moveToTail(MapRecord<String, Object, Object> record, Exception cause) {
+        Map<String, String> body = new HashMap<>(record.getValue().size() + 1);
+        record.getValue().forEach((k, v) -> body.put(k.toString(), v.toString()));
+        body.put("error", StrUtil.maxLength(cause.toString(), 500));
+        stringRedisTemplate.opsForStream().add(STREAM_ORDERS_DLQ_KEY, body);
+        stringRedisTemplate.opsForStream().delete(STREAM_ORDERS_DLQ_KEY, record.getId());
+    }
+}
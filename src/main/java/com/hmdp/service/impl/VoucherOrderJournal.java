@@ -0,0 +1,484 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderDeadLetterService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STATUS_KEY;
+
+/**
+ * 秒杀订单的本地预写日志：Redis扣过名额的订单先顺序追加到内存映射的段文件里，
+ * 防止Redis丢数据(没开持久化时宕机)或者订单还在进程内队列里时进程崩溃导致订单丢失。
+ * 1.写入：每条记录32字节，多个请求线程用CAS抢写入位置，各写各的，不加锁；不逐条刷盘，
+ *   由刷盘线程每flush-interval-millis统一force一次，崩溃时最多丢这么长时间内的记录
+ * 2.结果：订单落库、被拒绝、转入死信或者退还名额后调用resolve，把原记录的类型原地改成RESOLVED，
+ *   结果和记录一起持久化，不依赖会过期的订单状态
+ * 3.滚动：段文件写满后封存，新建下一个段文件
+ * 4.清理：封存的段里所有订单都已经有结果就删除这个段；别的实例处理的订单(Stream模式)没有调用resolve，
+ *   再查订单表和死信表确认
+ * 5.重放：启动时把上次遗留的段里还没有结果的订单重新交给createVoucherOrder落库
+ */
+@Slf4j
+@Component
+public class VoucherOrderJournal {
+
+    //每条记录：订单id、用户id、优惠券id各8字节，类型4字节，校验值4字节
+    private static final int RECORD_SIZE = 32;
+    private static final int TYPE_ADMITTED = 1;
+    private static final int TYPE_RESOLVED = 2;
+    private static final long CHECK_SEED = 0x5EC1L;
+    private static final String SEGMENT_PREFIX = "orders-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    //清理和重放时每批检查的订单数
+    private static final int CHUNK_SIZE = 1000;
+    //sun.misc.Unsafe#invokeCleaner，删除段时立即释放内存映射，不用等GC
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            log.warn("无法获取invokeCleaner，订单日志段删除后由GC释放内存映射: {}", e.toString());
+            unsafe = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private VoucherOrderPersister voucherOrderPersister;
+
+    @Resource
+    private IVoucherOrderDeadLetterService voucherOrderDeadLetterService;
+
+    private File dir;
+    private volatile Segment current;
+    private long nextSeq;
+    //已经封存、等待清理的段
+    private final List<Segment> sealed = new CopyOnWriteArrayList<>();
+    //上次运行遗留的段，启动后重放
+    private final List<Segment> recovered = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService journalExecutor;
+
+    @PostConstruct
+    private void init() throws IOException {
+        SeckillProperties.Journal config = seckillProperties.getJournal();
+        if (!config.isEnabled()) {
+            return;
+        }
+        dir = new File(config.getDir());
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建订单日志目录 " + dir.getAbsolutePath());
+        }
+        // 1.找到上次遗留的段文件，按序号排序
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                Segment segment = Segment.open(file, seqOf(file), (int) file.length());
+                segment.position.set(segment.capacity);
+                // 上次运行没有结果的订单登记到索引里，重放或者清理时确认结果后改写
+                for (int pos = 0; pos + RECORD_SIZE <= segment.capacity; pos += RECORD_SIZE) {
+                    VoucherOrder voucherOrder = segment.read(pos);
+                    if (voucherOrder != null) {
+                        segment.pending.incrementAndGet();
+                        segment.slots.put(voucherOrder.getId(), pos);
+                    }
+                }
+                recovered.add(segment);
+                nextSeq = segment.seq + 1;
+            }
+        }
+        // 2.新建当前段
+        current = newSegment();
+
+        // 3.刷盘线程和清理线程
+        journalExecutor = Executors.newScheduledThreadPool(2,
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-journal-").build());
+        journalExecutor.scheduleWithFixedDelay(this::flush,
+                config.getFlushIntervalMillis(), config.getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
+        journalExecutor.scheduleWithFixedDelay(this::sweep,
+                config.getSweepIntervalMillis(), config.getSweepIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (journalExecutor == null) {
+            return;
+        }
+        journalExecutor.shutdownNow();
+        flush();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void replayOnStartup() {
+        if (recovered.isEmpty()) {
+            return;
+        }
+        for (Segment segment : recovered) {
+            try {
+                int failed = replay(segment);
+                log.info("订单日志{}重放完成，{}个订单重放失败", segment.file.getName(), failed);
+            } catch (Exception e) {
+                log.error("订单日志重放失败: " + segment.file.getName(), e);
+            }
+            // 重放后交给清理线程，全部有结果了才删除
+            sealed.add(segment);
+        }
+        recovered.clear();
+    }
+
+    /**
+     * 追加一条Redis已经扣过名额的订单，不刷盘
+     */
+    public void append(long orderId, long userId, long voucherId) {
+        if (current == null) {
+            return;
+        }
+        while (true) {
+            Segment segment = current;
+            // 先占pending再抢位置，清理线程看到pending为0时不会有正在写的记录
+            segment.pending.incrementAndGet();
+            int pos = segment.position.getAndAdd(RECORD_SIZE);
+            if (pos + RECORD_SIZE <= segment.capacity) {
+                segment.write(pos, orderId, userId, voucherId);
+                segment.slots.put(orderId, pos);
+                return;
+            }
+            // 当前段写满了，退还pending，滚动到下一个段
+            segment.pending.decrementAndGet();
+            roll(segment);
+        }
+    }
+
+    /**
+     * 订单已经有了持久的结果(落库、被拒绝、转入死信、退还名额)，把日志里的记录标记为已解决，不刷盘。
+     * 不是本实例写入的订单直接忽略
+     */
+    public void resolve(long orderId) {
+        // 大部分订单在当前段，找不到再找封存的段和遗留的段
+        Segment segment = current;
+        if (segment != null && segment.resolve(orderId)) {
+            return;
+        }
+        for (Segment s : sealed) {
+            if (s.resolve(orderId)) {
+                return;
+            }
+        }
+        for (Segment s : recovered) {
+            if (s.resolve(orderId)) {
+                return;
+            }
+        }
+    }
+
+    public void resolve(List<Long> orderIds) {
+        if (current == null) {
+            return;
+        }
+        for (Long orderId : orderIds) {
+            resolve(orderId);
+        }
+    }
+
+    private synchronized void roll(Segment full) {
+        if (current != full) {
+            // 别的线程已经滚动过了
+            return;
+        }
+        try {
+            current = newSegment();
+        } catch (IOException e) {
+            throw new UncheckedIOException("创建订单日志段失败", e);
+        }
+        sealed.add(full);
+    }
+
+    private Segment newSegment() throws IOException {
+        long seq = nextSeq++;
+        File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+        int capacity = seckillProperties.getJournal().getSegmentSizeMb() * 1024 * 1024 / RECORD_SIZE * RECORD_SIZE;
+        return Segment.open(file, seq, capacity);
+    }
+
+    //批量刷盘：当前段和还没刷过的封存段有新写入就force一次
+    private void flush() {
+        try {
+            Segment segment = current;
+            if (segment != null) {
+                segment.force();
+            }
+            for (Segment s : sealed) {
+                s.force();
+            }
+        } catch (Exception e) {
+            log.error("订单日志刷盘失败", e);
+        }
+    }
+
+    //清理：封存的段里的订单都有结果了就删除，超过保留时间的段直接删除
+    private void sweep() {
+        long expireBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(seckillProperties.getJournal().getRetainHours());
+        for (Segment segment : sealed) {
+            try {
+                boolean expired = segment.file.lastModified() < expireBefore;
+                if (expired && segment.pending.get() > 0) {
+                    log.warn("订单日志{}超过保留时间，仍有订单没有结果，直接删除", segment.file.getName());
+                }
+                // 还有没结果的订单时再查一遍订单表和死信表(别的实例处理的订单不会调用resolve)
+                if (expired || segment.pending.get() == 0 || unresolved(segment, false) == 0) {
+                    sealed.remove(segment);
+                    segment.delete();
+                }
+            } catch (Exception e) {
+                log.error("清理订单日志失败: " + segment.file.getName(), e);
+            }
+        }
+    }
+
+    //重放段里没有结果的订单，返回重放失败的订单数
+    private int replay(Segment segment) {
+        return unresolved(segment, true);
+    }
+
+    /**
+     * 统计段里还没有结果的订单数
+     * @param replay 是否把没有结果的订单重新落库，重放时只统计重放失败的
+     */
+    private int unresolved(Segment segment, boolean replay) {
+        int count = 0;
+        List<VoucherOrder> chunk = new ArrayList<>(CHUNK_SIZE);
+        for (int pos = 0; pos + RECORD_SIZE <= segment.capacity; pos += RECORD_SIZE) {
+            VoucherOrder voucherOrder = segment.read(pos);
+            if (voucherOrder == null) {
+                continue;
+            }
+            chunk.add(voucherOrder);
+            if (chunk.size() >= CHUNK_SIZE) {
+                count += unresolved(chunk, replay);
+                chunk.clear();
+                if (!replay && count > 0) {
+                    // 清理时只要有一个没结果就不能删，不用再往下查
+                    return count;
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            count += unresolved(chunk, replay);
+        }
+        return count;
+    }
+
+    private int unresolved(List<VoucherOrder> chunk, boolean replay) {
+        // 1.查订单状态，PERSISTED/FAILED说明已经有结果(状态会过期，查不到的继续往下查)
+        List<Object> statuses = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : chunk) {
+                conn.hGet(SECKILL_STATUS_KEY + voucherOrder.getId(), "status");
+            }
+            return null;
+        });
+        List<VoucherOrder> pending = new ArrayList<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            Object status = statuses.get(i);
+            if (status == null || OrderStatusStore.QUEUED.equals(status)) {
+                pending.add(chunk.get(i));
+            } else {
+                resolve(chunk.get(i).getId());
+            }
+        }
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        // 2.状态过期了或者还在排队的，再查订单表和死信表 select id from tb_voucher_order where id in (...)
+        List<Long> ids = new ArrayList<>(pending.size());
+        pending.forEach(order -> ids.add(order.getId()));
+        Set<Long> resolved = new HashSet<>();
+        voucherOrderService.query().select("id").in("id", ids).list().forEach(order -> resolved.add(order.getId()));
+        voucherOrderDeadLetterService.query().select("order_id").in("order_id", ids).list()
+                .forEach(deadLetter -> resolved.add(deadLetter.getOrderId()));
+        int count = 0;
+        for (VoucherOrder voucherOrder : pending) {
+            if (resolved.contains(voucherOrder.getId())) {
+                resolve(voucherOrder.getId());
+                continue;
+            }
+            if (!replay) {
+                count++;
+                continue;
+            }
+            // 3.重放，createVoucherOrder对同一个订单是幂等的，和消费者同时处理也不会重复下单；有了结果persist会调用resolve
+            try {
+                voucherOrderPersister.persist(voucherOrder);
+            } catch (Exception e) {
+                log.error("订单日志重放失败, orderId=" + voucherOrder.getId(), e);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long seqOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static int check(long orderId, long userId, long voucherId) {
+        long h = CHECK_SEED;
+        h = h * 31 + orderId;
+        h = h * 31 + userId;
+        h = h * 31 + voucherId;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    //释放段文件的内存映射，拿不到cleaner时只能等GC回收
+    private static void unmap(MappedByteBuffer buffer) {
+        if (UNSAFE == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            log.warn("释放订单日志内存映射失败", e);
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final long seq;
+        private final int capacity;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger position = new AtomicInteger();
+        //还没有结果的订单数，为0时可以删除
+        private final AtomicInteger pending = new AtomicInteger();
+        //还没有结果的订单在这个段的哪个位置，resolve时按它改写记录；随段一起删除，不会无限增长
+        private final ConcurrentHashMap<Long, Integer> slots = new ConcurrentHashMap<>();
+        private volatile boolean dirty;
+        //已删除，内存映射已释放，不能再访问buffer
+        private boolean closed;
+
+        private Segment(File file, long seq, int capacity, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.seq = seq;
+            this.capacity = capacity;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, long seq, int capacity) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(file, seq, capacity, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+
+        //按绝对位置写，各线程写不同的位置，不共享buffer的position；类型和校验值最后写
+        void write(int pos, long orderId, long userId, long voucherId) {
+            buffer.putLong(pos, orderId);
+            buffer.putLong(pos + 8, userId);
+            buffer.putLong(pos + 16, voucherId);
+            buffer.putInt(pos + 24, TYPE_ADMITTED);
+            buffer.putInt(pos + 28, check(orderId, userId, voucherId));
+            dirty = true;
+        }
+
+        //订单有结果了，把记录类型原地改成RESOLVED，校验值不变；订单不在这个段返回false
+        boolean resolve(long orderId) {
+            Integer pos = slots.remove(orderId);
+            if (pos == null) {
+                return false;
+            }
+            synchronized (this) {
+                if (!closed) {
+                    buffer.putInt(pos + 24, TYPE_RESOLVED);
+                    pending.decrementAndGet();
+                    dirty = true;
+                }
+            }
+            return true;
+        }
+
+        //读取一条没有结果的记录，已解决、空位置(抢到位置但没写完就崩溃了)或者校验不通过返回null
+        VoucherOrder read(int pos) {
+            if (buffer.getInt(pos + 24) != TYPE_ADMITTED) {
+                return null;
+            }
+            long orderId = buffer.getLong(pos);
+            long userId = buffer.getLong(pos + 8);
+            long voucherId = buffer.getLong(pos + 16);
+            if (buffer.getInt(pos + 28) != check(orderId, userId, voucherId)) {
+                return null;
+            }
+            return new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(voucherId);
+        }
+
+        synchronized void force() {
+            if (dirty && !closed) {
+                dirty = false;
+                buffer.force();
+            }
+        }
+
+        //和resolve、force互斥，释放映射后不会再有线程访问buffer
+        synchronized void delete() throws IOException {
+            closed = true;
+            slots.clear();
+            unmap(buffer);
+            channel.close();
+            if (!file.delete()) {
+                throw new IOException("删除订单日志失败 " + file.getAbsolutePath());
+            }
+        }
+    }
+}
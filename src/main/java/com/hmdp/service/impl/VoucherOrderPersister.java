@@ -0,0 +1,101 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderStatusStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 订单落库处理器，Redis Stream和环形队列两种订单队列共用：
+ * 先在一个事务里整批落库，整批失败时退回逐条落库，然后更新客户端轮询的订单状态
+ */
+@Slf4j
+@Component
+public class VoucherOrderPersister {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private OrderStatusStore orderStatusStore;
+
+    @Resource
+    private VoucherOrderJournal voucherOrderJournal;
+
+    /**
+     * 落库一批订单
+     * @return 每个订单是否已经处理完(落库成功或者被业务拒绝)，false表示落库异常，需要调用方重试
+     */
+    public boolean[] persist(List<VoucherOrder> voucherOrders) {
+        boolean[] handled = new boolean[voucherOrders.size()];
+        List<Long> persisted = new ArrayList<>(voucherOrders.size());
+        List<Long> rejected = new ArrayList<>();
+        boolean batched = false;
+        // 1.整批落库
+        if (voucherOrders.size() > 1) {
+            try {
+                rejected.addAll(voucherOrderService.createVoucherOrders(voucherOrders));
+                voucherOrders.forEach(order -> persisted.add(order.getId()));
+                persisted.removeAll(rejected);
+                batched = true;
+                Arrays.fill(handled, true);
+            } catch (Exception e) {
+                log.error("批量创建订单失败，改为逐条处理", e);
+            }
+        }
+        // 2.逐条落库
+        if (!batched) {
+            for (int i = 0; i < voucherOrders.size(); i++) {
+                VoucherOrder voucherOrder = voucherOrders.get(i);
+                try {
+                    boolean success = voucherOrderService.createVoucherOrder(voucherOrder);
+                    (success ? persisted : rejected).add(voucherOrder.getId());
+                    handled[i] = true;
+                } catch (Exception e) {
+                    log.error("创建订单失败, orderId=" + voucherOrder.getId(), e);
+                }
+            }
+        }
+
+        // 3.更新订单状态，客户端轮询能看到结果
+        try {
+            orderStatusStore.update(persisted, rejected);
+        } catch (Exception e) {
+            log.error("更新订单状态失败", e);
+        }
+        // 4.已经有结果的订单在本地日志里标记为已解决，重启后不再重放
+        voucherOrderJournal.resolve(persisted);
+        voucherOrderJournal.resolve(rejected);
+        return handled;
+    }
+
+    /**
+     * 落库单个订单(重试时用)，异常直接抛给调用方
+     */
+    public void persist(VoucherOrder voucherOrder) {
+        boolean success = voucherOrderService.createVoucherOrder(voucherOrder);
+        List<Long> orderIds = Collections.singletonList(voucherOrder.getId());
+        voucherOrderJournal.resolve(voucherOrder.getId());
+        orderStatusStore.update(success ? orderIds : Collections.emptyList(), success ? Collections.emptyList() : orderIds);
+    }
+
+    /**
+     * 重试次数用完的订单，状态改成FAILED(死信重放成功后会改回PERSISTED)
+     */
+    public void markFailed(VoucherOrder voucherOrder) {
+        // 已经写进死信，由死信重放负责，本地日志不再重放
+        voucherOrderJournal.resolve(voucherOrder.getId());
+        try {
+            orderStatusStore.update(Collections.emptyList(), Collections.singletonList(voucherOrder.getId()));
+        } catch (Exception e) {
+            log.error("更新订单状态失败", e);
+        }
+    }
+}
@@ -1,37 +1,56 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderQueue;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.LockMetrics;
+import com.hmdp.utils.MetricsRegistry;
+import com.hmdp.utils.OrderStatusStore;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillSegments;
+import com.hmdp.utils.SeckillVoucherLocalState;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.TwoLevelLock;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -54,7 +73,42 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillVoucherLocalState seckillVoucherLocalState;
+
+    @Resource
+    private LockMetrics lockMetrics;
+
+    @Resource
+    private SeckillVoucherPreloader seckillVoucherPreloader;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private MetricsRegistry metricsRegistry;
+
+    @Resource
+    private OrderStatusStore orderStatusStore;
+
+    @Resource
+    private SeckillRequestBatcher seckillRequestBatcher;
+
+    @Resource
+    private IVoucherOrderQueue voucherOrderQueue;
+
+    @Resource
+    private VoucherOrderJournal voucherOrderJournal;
+
+    @Resource
+    private UnpaidOrderCanceller unpaidOrderCanceller;
+
+    //幂等模式下遇到的重复订单数(重复投递、重复回收的消息)
+    private LongAdder duplicateOrders;
+
+    @PostConstruct
+    private void init() {
+        duplicateOrders = metricsRegistry.counter("seckill.order.duplicate");
+    }
 
 
 
@@ -66,105 +120,365 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
+    //分段库存：主段扣减脚本和兄弟段扣减脚本
+    private static final DefaultRedisScript<Long> SECKILL_SEGMENT_SCRIPT = new DefaultRedisScript<>();
+    private static final DefaultRedisScript<Long> SECKILL_SEGMENT_TAKE_SCRIPT = new DefaultRedisScript<>();
+    static {
+        SECKILL_SEGMENT_SCRIPT.setLocation(new ClassPathResource("seckill_segment.lua"));
+        SECKILL_SEGMENT_SCRIPT.setResultType(Long.class);
+        SECKILL_SEGMENT_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_segment_take.lua"));
+        SECKILL_SEGMENT_TAKE_SCRIPT.setResultType(Long.class);
+    }
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();//Executors.newSingleThreadExecutor() 表示这个线程池 永远只有一个线程在运行任务。
+    //组合抢购，一次判断并扣减多张秒杀券
+    private static final DefaultRedisScript<List> SECKILL_BUNDLE_SCRIPT = new DefaultRedisScript<>();
+    static {
+        SECKILL_BUNDLE_SCRIPT.setLocation(new ClassPathResource("seckill_bundle.lua"));
+        SECKILL_BUNDLE_SCRIPT.setResultType(List.class);
+    }
 
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());//一开始就进行异步把数据存入数据库
+    //订单队列已满时退还名额
+    private static final DefaultRedisScript<Long> SECKILL_RETURN_SCRIPT = new DefaultRedisScript<>();
+    static {
+        SECKILL_RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_return.lua"));
+        SECKILL_RETURN_SCRIPT.setResultType(Long.class);
     }
 
-    private class VoucherOrderHandler implements Runnable {
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create("stream.orders", ReadOffset.lastConsumed())
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    handlePendingList();
-                }
+
+    @Override
+    @Transactional
+    public List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券分组，同一批里同一个用户只保留第一单
+        List<Long> rejected = new ArrayList<>();
+        Map<Long, Map<Long, VoucherOrder>> groups = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            VoucherOrder first = groups.computeIfAbsent(voucherOrder.getVoucherId(), k -> new LinkedHashMap<>())
+                    .putIfAbsent(voucherOrder.getUserId(), voucherOrder);
+            if (first != null && !first.getId().equals(voucherOrder.getId())) {
+                rejected.add(voucherOrder.getId());
             }
         }
 
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create("stream.orders", ReadOffset.from("0"))
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有异常消息，结束循环
-                        break;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    //getValue()获取value
-                    Map<Object, Object> value = record.getValue();
-                    //用hutool 的BeanUtil来把map转成VoucherOrder类，第三个参数是是否忽略字段不匹配或类型转换失败，设为 true 更安全
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
+        if (seckillProperties.getPersistMode() == SeckillProperties.PersistMode.IDEMPOTENT) {
+            createVoucherOrdersIdempotent(groups, voucherOrders.size(), rejected);
+            return rejected;
+        }
+
+        List<VoucherOrder> toSave = new ArrayList<>(voucherOrders.size());
+        for (Map.Entry<Long, Map<Long, VoucherOrder>> entry : groups.entrySet()) {
+            Long voucherId = entry.getKey();
+            Map<Long, VoucherOrder> orders = entry.getValue();
+
+            // 2.一次查询过滤掉已经买过的用户，代替逐单count(超时取消的订单不算)
+            List<VoucherOrder> existing = query().select("id", "user_id")
+                    .eq("voucher_id", voucherId).in("user_id", orders.keySet()).ne("status", 4).list();
+            for (VoucherOrder order : existing) {
+                VoucherOrder voucherOrder = orders.remove(order.getUserId());
+                // 同一个订单重复投递(消息重试、本地日志重放)，已经落过库了，按成功处理
+                if (order.getId().equals(voucherOrder.getId())) {
+                    continue;
                 }
+                log.error("不允许重复下单！userId=" + order.getUserId());
+                rejected.add(voucherOrder.getId());
+            }
+            if (orders.isEmpty()) {
+                continue;
             }
+
+            // 3.同一张券合并成一条update扣减库存 set stock = stock - n where voucher_id = ? and stock >= n
+            int n = orders.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + n)
+                    .eq("voucher_id", voucherId).ge("stock", n)
+                    .update();
+            if (success) {
+                toSave.addAll(orders.values());
+                continue;
+            }
+            // 3.1.库存不够整组扣减，按到达顺序逐单扣，扣不动的就是库存不足
+            boolean hasStock = true;
+            for (VoucherOrder order : orders.values()) {
+                hasStock = hasStock && seckillVoucherService.update()
+                        .setSql("stock = stock - 1")
+                        .eq("voucher_id", voucherId).gt("stock", 0)
+                        .update();
+                if (hasStock) {
+                    toSave.add(order);
+                } else {
+                    log.error("库存不足！voucherId=" + voucherId);
+                    rejected.add(order.getId());
+                }
+            }
+        }
+
+        // 4.多行insert一次写入整批订单
+        if (!toSave.isEmpty()) {
+            getBaseMapper().insertBatch(toSave);
         }
+        return rejected;
     }
 
     @Override
     public Result seckillVoucher(Long voucherId) {
-        //获得订单Id
-        long orderid= redisIdWorker.nextId("order");//调用全局ID生成器
+        //0.先查本地状态表，已售罄/未开始/已结束的请求直接返回，不用访问Redis
+        String rejected = seckillVoucherLocalState.check(voucherId, seckillVoucherService::getById);
+        if (rejected != null) {
+            return Result.fail(rejected);
+        }
 
         //获取用户id
         Long userId = UserHolder.getUser().getId();
-        //1.执行Lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),//我们这里没有key，就放了两个值在ARGV[]数组中
-                voucherId.toString(), userId.toString(),String.valueOf(orderid)//long转string
-        );
+        int segments = seckillVoucherLocalState.getSegments(voucherId);
+        //开启合批时，和同一张券的并发请求一起执行seckill_batch.lua(分段库存的券不合批)
+        if (seckillProperties.getBatch().isEnabled() && segments == 1) {
+            return seckillInBatch(voucherId, userId);
+        }
+
+        //获得订单Id
+        long orderid= redisIdWorker.nextId("order");//调用全局ID生成器
+
+        //1.执行Lua脚本，分段库存的券走分段扣减
+        int r;
+        if (segments > 1) {
+            r = seckillBySegments(voucherId, userId, orderid, segments);
+        } else {
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),//我们这里没有key，就放了两个值在ARGV[]数组中
+                    voucherId.toString(), userId.toString(),String.valueOf(orderid),//long转string
+                    String.valueOf(System.currentTimeMillis()),//当前时间，脚本用来判断秒杀时间窗口
+                    String.valueOf(seckillProperties.getStatusTtlSeconds()),//订单状态的过期时间
+                    voucherOrderQueue.publishedByScript() ? "1" : "0",//是否由脚本发送到stream.orders
+                    String.valueOf(unpaidOrderCanceller.payTimeoutMillis())//支付超时时间，脚本登记到延时队列
+            );
+            r = result.intValue();
+        }
 
         //2.判断是否为0
-        int r = result.intValue();
         if (r != 0) {
-            //2.1.不为0：代表没有购买资格
-            return Result.fail(r==1 ?  "库存不足":"没有购买资格");
+            return seckillFail(voucherId, r);
+        }
+        //2.3.写本地预写日志；订单队列不是由脚本写入的(进程内环形队列)，由这里入队
+        if (segments == 1) {
+            voucherOrderJournal.append(orderid, userId, voucherId);
+        }
+        if (segments == 1 && !voucherOrderQueue.publishedByScript() && !enqueue(voucherId, userId, orderid, 1)) {
+            return Result.fail("系统繁忙，请稍后重试");
         }
 
 
-        //3.返回订单ID
-        return Result.ok(0);
+        //3.返回订单ID，客户端用它轮询订单状态
+        return Result.ok(orderid);
 
     }
 
+    @Override
+    public Result seckillBundle(List<Long> voucherIds) {
+        // 1.去重，检查数量
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if (ids.isEmpty()) {
+            return Result.fail("请选择要抢购的优惠券");
+        }
+        if (ids.size() > seckillProperties.getBundleMaxSize()) {
+            return Result.fail("一次最多抢购" + seckillProperties.getBundleMaxSize() + "张优惠券");
+        }
+        // 2.先查本地状态表，任何一张券已售罄/未开始/已结束就直接返回
+        for (Long voucherId : ids) {
+            String rejected = seckillVoucherLocalState.check(voucherId, seckillVoucherService::getById);
+            if (rejected != null) {
+                return Result.fail(rejected);
+            }
+            //分段库存的券的key分布在不同的slot上，不能在一个脚本里扣减
+            if (seckillVoucherLocalState.getSegments(voucherId) > 1) {
+                return Result.fail("该优惠券不支持组合抢购");
+            }
+        }
 
+        // 3.一次生成所有订单id
+        Long userId = UserHolder.getUser().getId();
+        long[] orderIds = redisIdWorker.nextIds("order", ids.size());
+
+        // 4.执行脚本 ARGV: userId now statusTtl publish payTimeout voucherId1 orderId1 voucherId2 orderId2 ...
+        String[] args = new String[5 + 2 * ids.size()];
+        args[0] = userId.toString();
+        args[1] = String.valueOf(System.currentTimeMillis());
+        args[2] = String.valueOf(seckillProperties.getStatusTtlSeconds());
+        args[3] = voucherOrderQueue.publishedByScript() ? "1" : "0";
+        args[4] = String.valueOf(unpaidOrderCanceller.payTimeoutMillis());
+        for (int i = 0; i < ids.size(); i++) {
+            args[5 + 2 * i] = ids.get(i).toString();
+            args[6 + 2 * i] = String.valueOf(orderIds[i]);
+        }
+        List<?> result = stringRedisTemplate.execute(SECKILL_BUNDLE_SCRIPT, Collections.emptyList(), (Object[]) args);
+
+        // 5.有一张券没有购买资格，整单失败，提示是哪一张
+        int r = ((Number) result.get(0)).intValue();
+        if (r != 0) {
+            Long voucherId = ids.get(((Number) result.get(1)).intValue() - 1);
+            seckillFail(voucherId, r);
+            return Result.fail("优惠券" + voucherId + seckillFailMessage(r));
+        }
+
+        // 6.写本地预写日志
+        Map<Long, Long> orders = new LinkedHashMap<>();
+        List<VoucherOrder> voucherOrders = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            voucherOrderJournal.append(orderIds[i], userId, ids.get(i));
+            orders.put(ids.get(i), orderIds[i]);
+            voucherOrders.add(new VoucherOrder().setId(orderIds[i]).setUserId(userId).setVoucherId(ids.get(i)));
+        }
+        // 7.订单队列不是由脚本写入的由这里整组入队，要么全部入队，要么全部退还名额，整单失败
+        if (!voucherOrderQueue.publishedByScript() && !voucherOrderQueue.publishAll(voucherOrders)) {
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                returnQuota(voucherOrder.getVoucherId(), userId, voucherOrder.getId(), 1);
+            }
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        return Result.ok(orders);
+    }
+
+    private Result seckillInBatch(Long voucherId, Long userId) {
+        long result;
+        try {
+            result = seckillRequestBatcher.submit(voucherId, userId);
+        } catch (TimeoutException e) {
+            //超时的请求已经从批次里撤出，没有扣过名额
+            return Result.fail("系统繁忙，请稍后重试");
+        } catch (Exception e) {
+            log.error("批量秒杀失败, voucherId=" + voucherId, e);
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        //大于0是订单id，否则是Lua返回值取反
+        if (result <= 0) {
+            return seckillFail(voucherId, (int) -result);
+        }
+        voucherOrderJournal.append(result, userId, voucherId);
+        if (!voucherOrderQueue.publishedByScript() && !enqueue(voucherId, userId, result, 1)) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        return Result.ok(result);
+    }
+
+    //把Redis已经扣过名额的订单放进订单队列，队列满了就退还名额并把订单状态改成FAILED
+    private boolean enqueue(Long voucherId, Long userId, long orderId, int segments) {
+        VoucherOrder voucherOrder = new VoucherOrder().setId(orderId).setUserId(userId).setVoucherId(voucherId);
+        if (voucherOrderQueue.publish(voucherOrder)) {
+            return true;
+        }
+        returnQuota(voucherId, userId, orderId, segments);
+        return false;
+    }
+
+    //退还没能入队的订单在Redis里扣掉的名额，订单状态改成FAILED
+    private void returnQuota(Long voucherId, Long userId, long orderId, int segments) {
+        int home = SeckillSegments.homeSegment(userId, segments);
+        stringRedisTemplate.execute(
+                SECKILL_RETURN_SCRIPT,
+                segments == 1
+                        ? Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId)
+                        : Arrays.asList(SeckillSegments.stockKey(voucherId, home), SeckillSegments.orderKey(voucherId, home)),
+                userId.toString()
+        );
+        //名额已经退还，本地日志里的这一单不能再重放
+        voucherOrderJournal.resolve(orderId);
+        orderStatusStore.update(Collections.emptyList(), Collections.singletonList(orderId));
+    }
+
+    //没有购买资格，库存不足时标记本地售罄并广播给其他实例
+    private Result seckillFail(Long voucherId, int r) {
+        if (r == 1) {
+            seckillVoucherLocalState.markSoldOut(voucherId);
+        }
+        //库存还没预热到Redis(比如Redis被清空了)，异步从数据库重建，请用户稍后重试
+        if (r == 5) {
+            seckillVoucherPreloader.preloadAsync(voucherId);
+        }
+        return Result.fail(seckillFailMessage(r));
+    }
+
+    //Lua脚本返回值对应的提示
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "没有购买资格";
+            case 3:
+                return "秒杀尚未开始";
+            case 4:
+                return "秒杀已经结束";
+            case 7:
+                return "系统繁忙，请稍后重试";
+            default:
+                return "秒杀活动准备中，请稍后重试";
+        }
+    }
+
+    //分段库存扣减：先在用户的主段判断一人一单并扣库存，主段空了再依次去兄弟段扣，
+    //每次脚本只碰同一个slot的key，所以各段可以分布在不同的Redis分片上
+    private int seckillBySegments(Long voucherId, Long userId, long orderId, int segments) {
+        int home = SeckillSegments.homeSegment(userId, segments);
+        String orderKey = SeckillSegments.orderKey(voucherId, home);
+        // 1.主段：判断秒杀时间、重复下单、占位、扣库存
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SEGMENT_SCRIPT,
+                Arrays.asList(SeckillSegments.stockKey(voucherId, home), orderKey, SeckillSegments.timeKey(voucherId, home)),
+                userId.toString(), String.valueOf(System.currentTimeMillis())
+        );
+        int r = result.intValue();
+        if (r == 6) {
+            // 2.主段没库存，从下一段开始依次去兄弟段扣
+            r = 1;
+            for (int i = 1; i < segments && r != 0; i++) {
+                String siblingKey = SeckillSegments.stockKey(voucherId, (home + i) % segments);
+                r = stringRedisTemplate.execute(SECKILL_SEGMENT_TAKE_SCRIPT, Collections.singletonList(siblingKey)).intValue();
+            }
+            if (r != 0) {
+                // 2.1.所有段都没库存了，删掉主段里的占位
+                stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+                return 1;
+            }
+        }
+        if (r != 0) {
+            return r;
+        }
+        // 3.扣减成功，先记录排队状态再放进订单队列(否则消费者可能先落库，状态又被改回QUEUED)
+        orderStatusStore.queued(orderId, userId);
+        voucherOrderJournal.append(orderId, userId, voucherId);
+        if (!enqueue(voucherId, userId, orderId, segments)) {
+            return 7;
+        }
+        // 4.登记支付截止时间
+        unpaidOrderCanceller.schedule(orderId, voucherId, userId, System.currentTimeMillis());
+        return 0;
+    }
+
+    @Override
+    @Transactional
+    public boolean cancelUnpaidOrder(Long orderId, Long voucherId) {
+        // 1.只取消未支付的订单 update tb_voucher_order set status = 4 where id = ? and status = 1
+        boolean success = update().set("status", 4)
+                .eq("id", orderId).eq("status", 1)
+                .update();
+        if (!success) {
+            return false;
+        }
+        // 2.归还库存 set stock = stock + 1
+        seckillVoucherService.update()
+                .setSql("stock = stock + 1")
+                .eq("voucher_id", voucherId)
+                .update();
+        return true;
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        String status = orderStatusStore.get(orderId, UserHolder.getUser().getId());
+        if (status == null) {
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(status);
+    }
 
 
 //    @Override
@@ -259,28 +573,95 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //
 //    }
 
-    private void createVoucherOrder(VoucherOrder voucherOrder) {
+    //幂等模式的批量落库：每张券一条INSERT IGNORE，按真正插入的行数扣库存，重复的行不扣
+    private void createVoucherOrdersIdempotent(Map<Long, Map<Long, VoucherOrder>> groups, int total, List<Long> rejected) {
+        int duplicates = total - rejected.size();
+        for (Map.Entry<Long, Map<Long, VoucherOrder>> entry : groups.entrySet()) {
+            Long voucherId = entry.getKey();
+            Map<Long, VoucherOrder> group = entry.getValue();
+            List<VoucherOrder> orders = new ArrayList<>(group.values());
+            // 1.重复的(user_id, voucher_id)或者重复投递的订单id会被跳过
+            int inserted = getBaseMapper().insertBatchIgnore(orders);
+            duplicates -= inserted;
+            if (inserted < orders.size()) {
+                // 1.1.被跳过的订单：订单表里有这个订单id说明是重复投递，按成功处理；
+                //     用户已经有了别的订单id说明是一人一单冲突，拒绝
+                Set<Long> ids = new HashSet<>();
+                query().select("id").eq("voucher_id", voucherId).in("user_id", group.keySet()).list()
+                        .forEach(order -> ids.add(order.getId()));
+                for (VoucherOrder order : orders) {
+                    if (!ids.contains(order.getId())) {
+                        log.error("不允许重复下单！userId=" + order.getUserId());
+                        rejected.add(order.getId());
+                        duplicates--;
+                    }
+                }
+            }
+            if (inserted == 0) {
+                continue;
+            }
+            // 2.按插入的行数扣库存，库存不够就整批回滚，由消费者改为逐条处理
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId).ge("stock", inserted)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("库存不足，voucherId=" + voucherId);
+            }
+        }
+        if (duplicates > 0) {
+            duplicateOrders.add(duplicates);
+        }
+    }
+
+    @Override
+    @Transactional
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        if (seckillProperties.getPersistMode() == SeckillProperties.PersistMode.IDEMPOTENT) {
+            return createVoucherOrderIdempotent(voucherOrder);
+        }
         Long userId = voucherOrder.getUserId();
         Long voucherId = voucherOrder.getVoucherId();
-        // 创建锁对象
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        // 尝试获取锁
-        boolean isLock = redisLock.tryLock();
+        // 创建锁对象：两级锁，本JVM里同一个用户的订单先在本地互斥，只有一个线程去Redis抢 lock:order:{userId}，加上指标
+        String lockName = "order:" + userId;
+        ILock redisLock = lockMetrics.instrument(lockName, new TwoLevelLock(lockName, stringRedisTemplate));
+        // 尝试获取锁，同一个用户的另一单正在落库时等它一会儿(之后查库就能判断是不是重复下单)，拿到后看门狗续期
+        boolean isLock;
+        try {
+            isLock = redisLock.lock(LOCK_ORDER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待用户锁被中断, userId=" + userId, e);
+        }
         // 判断
         if (!isLock) {
-            // 获取锁失败，直接返回失败或者重试
-            log.error("不允许重复下单！");
-            return;
+            // 获取锁超时不能说明是重复下单(可能只是同一个用户的另一单还没落完库)，抛出异常由调用方重试
+            throw new IllegalStateException("获取用户锁超时, userId=" + userId);
+        }
+        // 事务提交(或回滚)之后再释放锁，否则订单还没提交锁就放掉了，同一个用户的下一单查不到这一单
+        boolean releaseAfterCompletion = TransactionSynchronizationManager.isSynchronizationActive();
+        if (releaseAfterCompletion) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    redisLock.unLock();
+                }
+            });
         }
 
         try {
-            // 5.1.查询订单
-            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+            // 5.1.查询订单(超时取消的订单不算，用户可以重新购买)
+            VoucherOrder existing = query().select("id").eq("user_id", userId).eq("voucher_id", voucherId)
+                    .ne("status", 4).last("limit 1").one();
             // 5.2.判断是否存在
-            if (count > 0) {
+            if (existing != null) {
+                // 同一个订单重复投递(消息重试、本地日志重放)，已经落过库了，按成功处理
+                if (existing.getId().equals(voucherOrder.getId())) {
+                    return true;
+                }
                 // 用户已经购买过了
                 log.error("不允许重复下单！");
-                return;
+                return false;
             }
 
             // 6.扣减库存
@@ -291,14 +672,45 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             if (!success) {
                 // 扣减失败
                 log.error("库存不足！");
-                return;
+                return false;
             }
 
             // 7.创建订单
-            save(voucherOrder);
+            return save(voucherOrder);
         } finally {
-            // 释放锁
-            redisLock.unlock();
+            // 没有事务时直接释放锁
+            if (!releaseAfterCompletion) {
+                redisLock.unLock();
+            }
+        }
+    }
+
+    //幂等模式的逐条落库：不加锁、不count，直接插入，唯一索引冲突时再按订单id区分重复投递和一人一单冲突
+    private boolean createVoucherOrderIdempotent(VoucherOrder voucherOrder) {
+        // 1.先插入订单，重复就直接返回，这时候还没有扣库存，不需要回滚
+        try {
+            save(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            // 1.1.同一个订单id已经落过库(重复投递)，按成功处理
+            if (query().eq("id", voucherOrder.getId()).count() > 0) {
+                duplicateOrders.increment();
+                log.warn("重复的订单，当作已经处理: userId=" + voucherOrder.getUserId() + ", voucherId=" + voucherOrder.getVoucherId());
+                return true;
+            }
+            // 1.2.撞上的是这个用户的另一个订单，一人一单
+            log.error("不允许重复下单！");
+            return false;
+        }
+        // 2.扣减库存，扣不动就回滚刚才插入的订单
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
+                .update();
+        if (!success) {
+            log.error("库存不足！");
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
         }
+        return true;
     }
 }
@@ -0,0 +1,334 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderDeadLetterService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ * stream.orders的消费者组：每个实例启动若干个消费者线程，消费者名字各不相同，
+ * 这样加机器、加线程都能分摊订单；另外有一个回收线程用XPENDING/XCLAIM接管挂掉的消费者的pending消息。
+ * 处理失败的消息留在pending-list中，按XPENDING里的投递次数指数退避重试，超过max-deliveries次转入死信
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill", name = "queue", havingValue = "redis-stream", matchIfMissing = true)
+public class VoucherOrderStreamConsumer {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherOrderPersister voucherOrderPersister;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private IVoucherOrderDeadLetterService voucherOrderDeadLetterService;
+
+    //实例标识 pid@hostname，消费者名字 = 实例标识-序号，保证集群内唯一
+    private final String instanceId = ManagementFactory.getRuntimeMXBean().getName();
+
+    private ExecutorService consumerExecutor;
+    private ScheduledExecutorService reclaimExecutor;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        // 1.确保消费者组存在 XGROUP CREATE stream.orders g1 0 MKSTREAM
+        createGroupIfAbsent();
+
+        // 2.启动消费者线程
+        int consumers = seckillProperties.getConsumerThreads();
+        consumerExecutor = Executors.newFixedThreadPool(consumers,
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-order-").build());
+        for (int i = 0; i < consumers; i++) {
+            consumerExecutor.submit(new VoucherOrderHandler(instanceId + "-" + i));
+        }
+
+        // 3.启动回收线程，定时接管超时未确认的消息
+        reclaimExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-order-reclaimer-").build());
+        long interval = seckillProperties.getReclaimIntervalMillis();
+        reclaimExecutor.scheduleWithFixedDelay(this::reclaimPendingOrders, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        reclaimExecutor.shutdownNow();
+        consumerExecutor.shutdownNow();
+    }
+
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(bytes(STREAM_ORDERS_KEY), STREAM_ORDERS_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // BUSYGROUP 说明消费者组已经存在
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+
+        private final Consumer consumer;
+        //下一次重试自己名下pending消息的时间
+        private long nextRetryAt;
+        //连续出错时的退避时间
+        private long errorBackoff;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumer = Consumer.from(STREAM_ORDERS_GROUP, consumerName);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // 0.定期重试自己名下处理失败的消息；消费者名带进程号，重启后是新的名字，
+                    // 上次运行没确认的消息由回收线程按claim-idle-millis接管，不在这里处理
+                    if (System.currentTimeMillis() >= nextRetryAt) {
+                        retryPendingOrders(consumer.getName(), consumer.getName(), seckillProperties.getRetryBackoffMillis());
+                        nextRetryAt = System.currentTimeMillis() + seckillProperties.getRetryBackoffMillis();
+                    }
+                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty()
+                                    .count(seckillProperties.getBatchSize())
+                                    .block(Duration.ofMillis(seckillProperties.getBlockMillis())),
+                            StreamOffset.create(STREAM_ORDERS_KEY, ReadOffset.lastConsumed())
+                    );
+                    errorBackoff = 0;
+                    // 2.判断订单信息是否为空
+                    if (list == null || list.isEmpty()) {
+                        // 如果为null，说明没有消息，继续下一次循环
+                        continue;
+                    }
+                    // 3.创建订单并确认消息(一批消息只XACK一次)，失败的消息留在pending-list里等待重试
+                    handleVoucherOrders(list);
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("处理订单异常", e);
+                    // 4.一般是Redis或数据库不可用，退避一段时间再继续，不要空转
+                    errorBackoff = errorBackoff == 0
+                            ? seckillProperties.getRetryBackoffMillis()
+                            : Math.min(errorBackoff * 2, seckillProperties.getRetryBackoffMaxMillis());
+                    try {
+                        Thread.sleep(errorBackoff);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    //回收：接管挂掉的消费者名下空闲超过阈值的pending消息，回收消费者自己名下的失败消息按退避时间重试
+    private void reclaimPendingOrders() {
+        try {
+            String reclaimer = instanceId + "-reclaimer";
+            retryPendingOrders(reclaimer, reclaimer, seckillProperties.getRetryBackoffMillis());
+            retryPendingOrders(null, reclaimer, seckillProperties.getClaimIdleMillis());
+            // 清理已经没有pending消息、长时间不活跃的消费者(一般是已经下线的实例)
+            removeDeadConsumers();
+        } catch (Exception e) {
+            log.error("回收pending订单异常", e);
+        }
+    }
+
+    /**
+     * 重试pending消息：到了退避时间的消息XCLAIM到owner名下(投递次数+1)后逐条重新落库，
+     * 投递次数达到上限仍然失败的转入死信
+     * @param consumerName 只处理这个消费者名下的消息，null表示整个消费者组
+     * @param owner 消息接管到哪个消费者名下
+     * @param minIdle 消息至少空闲多久(毫秒)才会被接管，防止抢走别人正在处理的消息
+     */
+    private void retryPendingOrders(String consumerName, String owner, long minIdle) {
+        // 1.XPENDING stream.orders g1 start + count [consumer]，还在退避的消息跳过，
+        // 从上一页最后一条之后接着翻页，直到凑满一批到期的消息或者pending-list翻完
+        long count = seckillProperties.getReclaimBatchSize();
+        Map<RecordId, Long> due = new LinkedHashMap<>();
+        Range<String> range = Range.unbounded();
+        while (due.size() < count) {
+            PendingMessages pending = consumerName == null
+                    ? stringRedisTemplate.opsForStream().pending(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, range, count)
+                    : stringRedisTemplate.opsForStream().pending(STREAM_ORDERS_KEY, Consumer.from(STREAM_ORDERS_GROUP, consumerName), range, count);
+            for (PendingMessage message : pending) {
+                long idle = message.getElapsedTimeSinceLastDelivery().toMillis();
+                if (due.size() < count
+                        && idle >= Math.max(minIdle, seckillProperties.backoffMillis(message.getTotalDeliveryCount()))) {
+                    due.put(message.getId(), message.getTotalDeliveryCount());
+                }
+            }
+            if (pending.size() < count) {
+                break;
+            }
+            range = Range.rightUnbounded(Range.Bound.inclusive(after(pending.get(pending.size() - 1).getId())));
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        // 2.XCLAIM stream.orders g1 owner minIdle id...，别的实例已经抢走的消息不会再被claim到
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(bytes(STREAM_ORDERS_KEY), STREAM_ORDERS_GROUP, owner,
+                        Duration.ofMillis(minIdle), due.keySet().toArray(new RecordId[0])));
+        if (claimed == null || claimed.isEmpty()) {
+            return;
+        }
+        log.info("重试" + claimed.size() + "条未确认的订单消息");
+        // 3.逐条重试，一条坏消息不影响其他消息
+        for (ByteRecord record : claimed) {
+            MapRecord<String, String, String> mapRecord = record.deserialize(RedisSerializer.string());
+            Long deliveries = due.get(mapRecord.getId());
+            retryVoucherOrder(mapRecord, deliveries == null ? 1 : deliveries + 1);
+        }
+    }
+
+    //紧跟在id后面的消息id，XPENDING翻页的起点(Redis 6.2以前不支持排他区间)
+    private static String after(RecordId id) {
+        return id.getTimestamp() + "-" + (id.getSequence() + 1);
+    }
+
+    private void retryVoucherOrder(MapRecord<String, String, String> record, long deliveries) {
+        // 组合抢购的消息里有多个订单，已经落库的订单再处理一次也会按成功处理
+        List<VoucherOrder> voucherOrders = toVoucherOrders(record.getValue());
+        Map<VoucherOrder, Exception> failures = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            try {
+                voucherOrderPersister.persist(voucherOrder);
+            } catch (Exception e) {
+                failures.put(voucherOrder, e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            if (deliveries < seckillProperties.getMaxDeliveries()) {
+                log.warn("第" + deliveries + "次处理订单失败，稍后重试: " + record.getId() + ", " + failures.values().iterator().next().getMessage());
+                return;
+            }
+            // 投递次数用完，失败的订单逐个转入死信
+            failures.forEach((voucherOrder, e) -> {
+                log.error("订单处理" + deliveries + "次仍然失败，转入死信: " + record.getId(), e);
+                voucherOrderDeadLetterService.deadLetter(fields(voucherOrder), voucherOrder, record.getId().getValue(), deliveries, e.toString());
+                voucherOrderPersister.markFailed(voucherOrder);
+            });
+        }
+        // XACK stream.orders g1 id
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, record.getId());
+    }
+
+    /**
+     * 把一条消息解析成订单，普通秒杀的消息是一个订单(userId、voucherId、id)，
+     * 组合抢购的消息是多个订单(userId、lines = 优惠券Id:订单Id,优惠券Id:订单Id...)
+     */
+    private static List<VoucherOrder> toVoucherOrders(Map<?, ?> value) {
+        Object lines = value.get("lines");
+        if (lines == null) {
+            //用hutool 的BeanUtil来把map转成VoucherOrder类，第三个参数是是否忽略字段不匹配或类型转换失败，设为 true 更安全
+            return Collections.singletonList(BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true));
+        }
+        Long userId = Long.valueOf(value.get("userId").toString());
+        List<VoucherOrder> voucherOrders = new ArrayList<>();
+        for (String line : lines.toString().split(",")) {
+            String[] parts = line.split(":");
+            voucherOrders.add(new VoucherOrder()
+                    .setUserId(userId)
+                    .setVoucherId(Long.valueOf(parts[0]))
+                    .setId(Long.valueOf(parts[1])));
+        }
+        return voucherOrders;
+    }
+
+    //死信里按单个订单的格式保存，重放时不用区分是不是组合抢购
+    private static Map<String, String> fields(VoucherOrder voucherOrder) {
+        Map<String, String> fields = new HashMap<>(4);
+        fields.put("userId", voucherOrder.getUserId().toString());
+        fields.put("voucherId", voucherOrder.getVoucherId().toString());
+        fields.put("id", voucherOrder.getId().toString());
+        return fields;
+    }
+
+    private void removeDeadConsumers() {
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP);
+        consumers.forEach(info -> {
+            if (info.consumerName().startsWith(instanceId + "-")) {
+                return;
+            }
+            if (info.pendingCount() == 0 && info.idleTimeMs() >= seckillProperties.getClaimIdleMillis()) {
+                stringRedisTemplate.opsForStream().deleteConsumer(STREAM_ORDERS_KEY, Consumer.from(STREAM_ORDERS_GROUP, info.consumerName()));
+            }
+        });
+    }
+
+    //处理一批消息：交给落库处理器，把处理完的消息一次性XACK，异常的消息留在pending-list中等待重试
+    private void handleVoucherOrders(List<? extends MapRecord<String, ?, ?>> records) {
+        // 1.解析数据，ends[i]是第i条消息的最后一个订单之后的位置
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        int[] ends = new int[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            voucherOrders.addAll(toVoucherOrders(records.get(i).getValue()));
+            ends[i] = voucherOrders.size();
+        }
+
+        // 2.创建订单
+        boolean[] handled = voucherOrderPersister.persist(voucherOrders);
+
+        // 3.确认消息 XACK stream.orders g1 id1 id2 ...，消息里的订单都处理完了才确认
+        List<RecordId> ids = new ArrayList<>(records.size());
+        for (int i = 0, start = 0; i < records.size(); start = ends[i++]) {
+            boolean done = true;
+            for (int j = start; j < ends[i]; j++) {
+                done = done && handled[j];
+            }
+            if (done) {
+                ids.add(records.get(i).getId());
+            }
+        }
+        if (!ids.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP, ids.toArray(new RecordId[0]));
+        }
+        if (ids.size() < records.size()) {
+            log.warn("有" + (records.size() - ids.size()) + "条订单处理失败，留在pending-list中等待重试");
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,222 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * stream.orders的保留策略：定期用 XTRIM MINID ~ 删除已经确认过的消息，让Redis内存不随历史订单增长。
+ * 裁剪位置取以下三者中最小的：
+ * 1.消费者组最早的pending消息(还没确认，不能删)
+ * 2.消费者组last-delivered-id的下一个id(还没投递过的消息不能删)
+ * 3.当前时间 - retain-millis(最近的消息多留一会方便排查)
+ * 开启归档时，裁剪前先把要删除的消息追加写到本地文件
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.seckill", name = "queue", havingValue = "redis-stream", matchIfMissing = true)
+public class VoucherOrderStreamTrimmer {
+
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT = new DefaultRedisScript<>();
+    static {
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DateTimeFormatter ARCHIVE_DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private ScheduledExecutorService trimExecutor;
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.Retention retention = seckillProperties.getRetention();
+        if (!retention.isEnabled()) {
+            return;
+        }
+        trimExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-stream-trimmer-").build());
+        long interval = retention.getIntervalMillis();
+        trimExecutor.scheduleWithFixedDelay(this::trimQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (trimExecutor != null) {
+            trimExecutor.shutdownNow();
+        }
+    }
+
+    private void trimQuietly() {
+        try {
+            // 集群内每个周期只有一个实例执行，锁不主动释放，到期自动失效
+            Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_STREAM_TRIM_KEY, "1",
+                    seckillProperties.getRetention().getIntervalMillis(), TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(locked)) {
+                return;
+            }
+            long trimmed = trim();
+            if (trimmed > 0) {
+                log.info("裁剪stream.orders，删除{}条已确认的消息", trimmed);
+            }
+        } catch (Exception e) {
+            log.error("裁剪stream.orders失败", e);
+        }
+    }
+
+    /**
+     * 执行一次裁剪
+     * @return 删除的消息数
+     */
+    public long trim() throws IOException {
+        // 1.计算安全的裁剪位置
+        String minId = safeMinId();
+        if (minId == null) {
+            return 0;
+        }
+        // 2.归档将要删除的消息
+        if (seckillProperties.getRetention().isArchive()) {
+            archive(minId);
+        }
+        // 3.裁剪，脚本里会再用XPENDING确认一次不越过最早的pending消息
+        Long trimmed = stringRedisTemplate.execute(
+                TRIM_SCRIPT,
+                Collections.singletonList(STREAM_ORDERS_KEY),
+                STREAM_ORDERS_GROUP, minId
+        );
+        return trimmed == null ? 0 : trimmed;
+    }
+
+    private String safeMinId() {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(STREAM_ORDERS_KEY))) {
+            return null;
+        }
+        // 1.XINFO GROUPS stream.orders，找到消费者组的last-delivered-id
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(STREAM_ORDERS_KEY);
+        String lastDelivered = groups.stream()
+                .filter(group -> STREAM_ORDERS_GROUP.equals(group.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst().orElse(null);
+        if (lastDelivered == null) {
+            // 消费者组还没创建，不知道哪些消息被消费过
+            return null;
+        }
+        String minId = nextId(lastDelivered);
+
+        // 2.XPENDING stream.orders g1，最早的pending消息
+        PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(STREAM_ORDERS_KEY, STREAM_ORDERS_GROUP);
+        if (pending.getTotalPendingMessages() > 0) {
+            minId = min(minId, pending.minMessageId());
+        }
+
+        // 3.保留最近retain-millis内的消息
+        long retainFrom = System.currentTimeMillis() - seckillProperties.getRetention().getRetainMillis();
+        return min(minId, retainFrom + "-0");
+    }
+
+    //把 [上次归档位置, minId) 之间的消息追加写到归档文件，每批写完刷盘后再记录归档位置
+    private void archive(String minId) throws IOException {
+        SeckillProperties.Retention retention = seckillProperties.getRetention();
+        String cursor = stringRedisTemplate.opsForValue().get(STREAM_ORDERS_ARCHIVED_KEY);
+        File dir = new File(retention.getArchiveDir());
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建归档目录 " + dir.getAbsolutePath());
+        }
+        File file = new File(dir, STREAM_ORDERS_KEY + "-" + LocalDate.now().format(ARCHIVE_DATE) + ".log");
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            while (true) {
+                // 1.XRANGE stream.orders cursor + COUNT n
+                Range<String> range = cursor == null
+                        ? Range.unbounded()
+                        : Range.rightUnbounded(Range.Bound.inclusive(cursor));
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                        .range(STREAM_ORDERS_KEY, range, RedisZSetCommands.Limit.limit().count(retention.getArchiveBatchSize()));
+                if (records == null || records.isEmpty()) {
+                    return;
+                }
+                // 2.每条消息一行JSON
+                StringBuilder lines = new StringBuilder();
+                String last = null;
+                boolean reachedMinId = false;
+                for (MapRecord<String, Object, Object> record : records) {
+                    String id = record.getId().getValue();
+                    if (cursor != null && compare(id, cursor) <= 0) {
+                        continue;
+                    }
+                    if (compare(id, minId) >= 0) {
+                        reachedMinId = true;
+                        break;
+                    }
+                    Map<Object, Object> line = new LinkedHashMap<>();
+                    line.put("streamId", id);
+                    line.putAll(record.getValue());
+                    lines.append(JSONUtil.toJsonStr(line)).append('\n');
+                    last = id;
+                }
+                // 3.写入并刷盘，然后更新归档位置，保证归档位置之前的消息一定已经落盘
+                if (last != null) {
+                    out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+                    out.getFD().sync();
+                    stringRedisTemplate.opsForValue().set(STREAM_ORDERS_ARCHIVED_KEY, last);
+                    cursor = last;
+                }
+                if (reachedMinId || last == null || records.size() < retention.getArchiveBatchSize()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    //消息id的下一个id，XTRIM MINID会保留大于等于它的消息
+    private static String nextId(String id) {
+        int i = id.indexOf('-');
+        return id.substring(0, i) + "-" + (Long.parseLong(id.substring(i + 1)) + 1);
+    }
+
+    private static String min(String a, String b) {
+        return compare(a, b) <= 0 ? a : b;
+    }
+
+    //比较两个消息id(毫秒时间-序号)
+    private static int compare(String a, String b) {
+        int i = a.indexOf('-');
+        int j = b.indexOf('-');
+        int result = Long.compare(Long.parseLong(a.substring(0, i)), Long.parseLong(b.substring(0, j)));
+        return result != 0 ? result : Long.compare(Long.parseLong(a.substring(i + 1)), Long.parseLong(b.substring(j + 1)));
+    }
+}
@@ -7,6 +7,7 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillVoucherLocalState;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -14,8 +15,6 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -33,6 +32,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillVoucherLocalState seckillVoucherLocalState;
+
+    @Resource
+    private SeckillVoucherPreloader seckillVoucherPreloader;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -52,10 +57,14 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        int segments = voucher.getSegments() == null || voucher.getSegments() < 1 ? 1 : voucher.getSegments();
+        seckillVoucher.setSegments(segments);
         seckillVoucherService.save(seckillVoucher);
 
-        //保存到redis中
-         stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        //保存到redis中(库存、秒杀时间窗口，分段库存会拆到多个key上)
+        seckillVoucherPreloader.preload(seckillVoucher, false);
+        //清掉各个实例本地的售罄/时间窗口状态
+        seckillVoucherLocalState.reset(voucher.getId());
 
     }
 
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.AdminProperties;
+import com.hmdp.dto.UserDTO;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 管理接口和运行指标的拦截器：只有hmdp.admin.user-ids里的用户可以调用
+ */
+@Component
+public class AdminInterceptor implements HandlerInterceptor {
+
+    @Resource
+    private AdminProperties adminProperties;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1.没有登录
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        // 2.不是管理员
+        if (!adminProperties.getUserIds().contains(user.getId())) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
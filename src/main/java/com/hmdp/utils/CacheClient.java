@@ -1,6 +1,5 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
@@ -8,12 +7,19 @@ import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -21,9 +27,22 @@ import static com.hmdp.utils.RedisConstants.*;
 @Slf4j
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
+    private final LockMetrics lockMetrics;
+    private final NearCache nearCache;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    //正在回源加载的key，同一个key的并发未命中共用一个加载结果(single-flight)
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+    //实际执行的回源次数、搭了别人便车的次数
+    private final LongAdder loads;
+    private final LongAdder coalescedLoads;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, LockMetrics lockMetrics, NearCache nearCache,
+                       MetricsRegistry metricsRegistry) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.lockMetrics = lockMetrics;
+        this.nearCache = nearCache;
+        this.loads = metricsRegistry.counter("cache.load.executed");
+        this.coalescedLoads = metricsRegistry.counter("cache.load.coalesced");
     }
 
     //存入redis
@@ -39,6 +58,28 @@ public class CacheClient {
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));//把时间转换为秒
         //放到redis中
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        //本实例的本地缓存直接换成新的，其他实例的本地缓存逻辑过期后会重新读Redis
+        nearCache.put(key, redisData);
+    }
+
+    //删除缓存(数据更新时调用)，并通知所有实例删除本地缓存
+    //在事务里调用时等事务提交后再删，否则提交前的并发查询会把旧数据重新写回Redis和本地缓存
+    public void delete(String key) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    doDelete(key);
+                }
+            });
+            return;
+        }
+        doDelete(key);
+    }
+
+    private void doDelete(String key) {
+        stringRedisTemplate.delete(key);
+        nearCache.invalidate(key);
     }
 
 
@@ -49,33 +90,75 @@ public class CacheClient {
     //<R,ID>是一个占位符，表示一些不确定类型的函数，声明这个方法是一个泛型方法，放在返回值前面
     public <R, ID> R queryWithPassThrough(String keyPefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPefix + id;
+        // 0.先查本地缓存，命中就不访问Redis、不解析JSON
+        Object cached = nearCache.get(key);
+        if (cached != null) {
+            return cached == NearCache.NULL_VALUE ? null : type.cast(cached);
+        }
         // 1.从redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get("cache:shop:" + id);
+        String json = stringRedisTemplate.opsForValue().get(key);
         // 2.判断是否存在
         if (StrUtil.isNotBlank(json)) {//hutool工具类，检查字符串不能为null或者空
             // 3.存在，直接返回
             //Hutool 的 JSONUtil:JSON 字符串反序列化为 Java 对象
             //用法: JSONUtil.toBean(JSON 字符串, 目标类);->返回一个目标类的Java对象
-            return JSONUtil.toBean(json, type);
+            R r = JSONUtil.toBean(json, type);
+            nearCache.put(key, r);
+            return r;
         }
 
         //再判断一次是否为空，如果为空就要报错一次
         if (json != null) {
+            nearCache.put(key, null);
             return null;
         }
 
 
-        // 4.不存在，根据id查询数据库
-        R r = dbFallback.apply(id);//apply()：执行函数，返回计算结果。
-        // 5.数据库不存在，将空值写入redis(防止缓存穿透)
-        if (r == null) {
-            set(key, "", time, unit);
-            return null;
+        // 4.不存在，根据id查询数据库，同一个key并发未命中时只有一个线程查数据库、写缓存，其他线程等它的结果
+        return type.cast(load(key, () -> {
+            R r = dbFallback.apply(id);//apply()：执行函数，返回计算结果。
+            // 5.数据库不存在，将空值写入redis(防止缓存穿透)
+            if (r == null) {
+                set(key, "", time, unit);
+                nearCache.put(key, null);
+                return null;
+            }
+            // 6.存在，写入redis
+            set(key, r, time, unit);
+            nearCache.put(key, r);
+            // 7.返回
+            return r;
+        }));
+    }
+
+    /**
+     * single-flight：同一个key同时只执行一次loader，期间到达的线程等待并共用这次的结果(包括异常)。
+     * 加载结束就移出，不缓存结果，结果的缓存由loader自己写Redis和本地缓存
+     */
+    private Object load(String key, Supplier<Object> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = loading.putIfAbsent(key, future);
+        if (inFlight != null) {
+            // 1.已经有线程在加载，等它的结果
+            coalescedLoads.increment();
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        // 2.自己加载，结果交给等待的线程
+        loads.increment();
+        try {
+            Object value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
         }
-        // 6.存在，写入redis
-        set(key, r, time, unit);
-        // 7.返回
-        return r;
     }
 
 
@@ -86,6 +169,11 @@ public class CacheClient {
     public <R, ID> R queryWithLogicalExpire(String keyPefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
 
         String key = keyPefix + id;
+        // 0.先查本地缓存，本地缓存的是反序列化好的RedisData，没有逻辑过期就直接返回
+        Object cached = nearCache.get(key);
+        if (cached instanceof RedisData && ((RedisData) cached).getExpireTime().isAfter(LocalDateTime.now())) {
+            return type.cast(((RedisData) cached).getData());
+        }
         // 1.从redis中查询商铺缓存
         String json = stringRedisTemplate.opsForValue().get(key);
         // 2.判断是否存在
@@ -103,28 +191,38 @@ public class CacheClient {
 
         //5.如果缓存中存在数据，则需要判断过期时间
         if (expireTime.isAfter(LocalDateTime.now())) {//expireTime就是LocalDataTime.now()+一个过期时间间隔，比如15.30过期，现在是15.25，说明没过期
-            //如果未过期，直接返回店铺信息
+            //如果未过期，放进本地缓存，直接返回店铺信息
+            RedisData local = new RedisData();
+            local.setData(r);
+            local.setExpireTime(expireTime);
+            nearCache.put(key, local);
             return r;
         }
 
-        //6.如果成功则要缓存重建
-        //6.1获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);//尝试获取锁
-        //6.2 判断是否获取锁成功
-        if (isLock) {
-            //6.3 如果成功，则开启独立线程，实现缓存重建
+        //6.如果过期则要缓存重建
+        //6.1 两级互斥锁，Redis里的key还是 lock:shop:{id}，加上指标
+        String lockName = "shop:" + id;
+        TwoLevelLock twoLevelLock = new TwoLevelLock(lockName, stringRedisTemplate);
+        ILock lock = lockMetrics.instrument(lockName, twoLevelLock);
+        //6.2 本JVM里已经有线程在重建了，直接返回旧数据，不再提交任务
+        if (!twoLevelLock.isLockedLocally()) {
+            //6.3 开启独立线程，在重建线程里获取锁(锁和释放要在同一个线程)，本JVM里只有一个线程会去Redis抢锁
             CACHE_REBUILD_EXECUTOR.submit(() -> {
+                if (!tryLock(lock)) {
+                    return;
+                }
                 try {
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
+                    //查询数据库并写入redis，和其他策略共用single-flight，同一个key不会同时回源
+                    load(key, () -> {
+                        R r1 = dbFallback.apply(id);
+                        this.setWithLogicalExpire(key, r1, time, unit);
+                        return r1;
+                    });
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 } finally {
                     //释放锁
-                    unLock(lockKey);
+                    unLock(lock);
                 }
 
             });
@@ -137,18 +235,14 @@ public class CacheClient {
 
 
     // 尝试获取互斥锁
-    private boolean tryLock(String key) {
-        //利用setnx(setIfAbsent)来实现互斥锁
-        // setnx:当且仅当没有值的时候才能设置值
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-
-        //return flag;//为什么不能直接返回flag？flag是Boolean类型，会先进行拆箱变成boolean类型，这个时候flag的值可能为null，出现空指针
-        return BooleanUtil.isTrue(flag);//用hutool工具类来判断，如果是null就会返回false
+    private boolean tryLock(ILock lock) {
+        //先拿本地锁，拿到了才去Redis抢锁，10秒后自动过期
+        return lock.tryLock(10);
     }
 
     //释放锁
-    private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+    private void unLock(ILock lock) {
+        lock.unLock();
     }
 
 
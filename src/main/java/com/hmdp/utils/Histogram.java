@@ -0,0 +1,90 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的对数分桶直方图，记录非负的long(比如耗时微秒)。
+ * 每个2的幂区间再分8个桶，分位数的误差不超过12.5%；记录只有几次原子加，不加锁，不随记录次数增长内存
+ */
+public class Histogram {
+
+    //每个2的幂区间的子桶数 = 2^SUB_BITS
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * 快照：count、mean、p50、p90、p99、p999、max，分位数取所在桶的上界
+     */
+    public Map<String, Object> snapshot() {
+        long total = count.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", total);
+        result.put("mean", total == 0 ? 0 : sum.sum() / total);
+        result.put("p50", percentile(0.5, total));
+        result.put("p90", percentile(0.9, total));
+        result.put("p99", percentile(0.99, total));
+        result.put("p999", percentile(0.999, total));
+        result.put("max", max.get());
+        return result;
+    }
+
+    private long percentile(double p, long total) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(lowerBound(i + 1) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    //0~7各占一个桶，之后每个[2^e, 2^(e+1))区间按最高位后面的3位再分8个桶
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        if (index >= BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+}
@@ -1,11 +1,25 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
     /**
-     *
+     * 尝试获取锁，不等待，同一个线程可以重入
      * @param timeoutSec 锁过期时间
      * @return
      */
     boolean tryLock(long timeoutSec);
+
+    /**
+     * 获取锁，锁被别人持有时等待释放通知，最多等待waitTime，同一个线程可以重入。
+     * 拿到锁之后由看门狗定时续期，直到unLock或者持有锁的线程结束
+     * @param waitTime 最长等待时间
+     * @return 是否拿到了锁
+     */
+    boolean lock(long waitTime, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * 释放锁，重入了几次就要释放几次
+     */
     void unLock();
 }
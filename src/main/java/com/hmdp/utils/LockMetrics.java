@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 锁的指标：按锁的类别(锁名第一个冒号之前的部分，比如 shop、order)统计
+ * lock.{类别}.attempts/acquired/failed 计数、失败率，lock.{类别}.acquire.micros 加锁耗时、
+ * lock.{类别}.hold.micros 持有时间两个直方图；另外按完整的锁名统计获取失败最多的TOP_N把锁(热点用户、热点店铺)。
+ * 锁名的数量没有上限(每个用户一把)，所以热点锁用Space-Saving算法只跟踪CAPACITY个锁名，内存固定，
+ * 出现次数多的锁名一定会留在表里，计数可能偏大(偏大的上限是error)。
+ * 通过 GET /metrics/locks 查看
+ */
+@Component
+public class LockMetrics {
+
+    private static final int CAPACITY = 256;
+    private static final int TOP_N = 20;
+
+    private final MetricsRegistry metricsRegistry;
+    private final ConcurrentHashMap<String, Category> categories = new ConcurrentHashMap<>();
+
+    //Space-Saving：锁名 -> {计数, 误差}，只在获取失败时更新
+    private final Map<String, long[]> contended = new HashMap<>();
+
+    public LockMetrics(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+        metricsRegistry.gauge("lock.contended.top", this::topContended);
+    }
+
+    /**
+     * 给锁加上指标，返回的锁和原来的锁用法一样
+     * @param name 锁名，和创建锁时用的一样，比如 order:{userId}
+     */
+    public ILock instrument(String name, ILock lock) {
+        return new InstrumentedLock(name, lock, categories.computeIfAbsent(category(name), Category::new));
+    }
+
+    //类别：第一个冒号之前的部分，没有冒号就去掉末尾的数字(比如 order1010)，避免用户id进入指标名
+    private static String category(String name) {
+        int colon = name.indexOf(':');
+        if (colon > 0) {
+            return name.substring(0, colon);
+        }
+        int end = name.length();
+        while (end > 0 && Character.isDigit(name.charAt(end - 1))) {
+            end--;
+        }
+        return end == 0 ? "default" : name.substring(0, end);
+    }
+
+    private synchronized void contended(String name) {
+        long[] entry = contended.get(name);
+        if (entry != null) {
+            entry[0]++;
+            return;
+        }
+        if (contended.size() < CAPACITY) {
+            contended.put(name, new long[]{1, 0});
+            return;
+        }
+        // 表满了，替换计数最小的锁名，新锁名继承它的计数，继承的部分记为误差
+        String minName = null;
+        long min = Long.MAX_VALUE;
+        for (Map.Entry<String, long[]> e : contended.entrySet()) {
+            if (e.getValue()[0] < min) {
+                min = e.getValue()[0];
+                minName = e.getKey();
+            }
+        }
+        contended.remove(minName);
+        contended.put(name, new long[]{min + 1, min});
+    }
+
+    private synchronized List<Map<String, Object>> topContended() {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(contended.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (int i = 0; i < Math.min(TOP_N, entries.size()); i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("name", entries.get(i).getKey());
+            item.put("failed", entries.get(i).getValue()[0]);
+            item.put("error", entries.get(i).getValue()[1]);
+            result.add(item);
+        }
+        return result;
+    }
+
+    //一个类别的指标
+    private class Category {
+        private final LongAdder attempts;
+        private final LongAdder acquired;
+        private final LongAdder failed;
+        private final Histogram acquireMicros;
+        private final Histogram holdMicros;
+
+        Category(String category) {
+            String prefix = "lock." + category + ".";
+            attempts = metricsRegistry.counter(prefix + "attempts");
+            acquired = metricsRegistry.counter(prefix + "acquired");
+            failed = metricsRegistry.counter(prefix + "failed");
+            acquireMicros = metricsRegistry.histogram(prefix + "acquire.micros");
+            holdMicros = metricsRegistry.histogram(prefix + "hold.micros");
+            metricsRegistry.gauge(prefix + "failure.rate", () -> {
+                long total = attempts.sum();
+                return total == 0 ? 0 : (double) failed.sum() / total;
+            });
+        }
+    }
+
+    /**
+     * 带指标的锁：记录每次加锁的耗时和结果，释放到最外层时记录持有时间。
+     * 和被包装的锁一样只在一个线程里用，字段不需要同步
+     */
+    private class InstrumentedLock implements ILock {
+        private final String name;
+        private final ILock lock;
+        private final Category category;
+        //这个对象上的重入次数和最外层拿到锁的时间
+        private int holds;
+        private long acquiredAt;
+
+        InstrumentedLock(String name, ILock lock, Category category) {
+            this.name = name;
+            this.lock = lock;
+            this.category = category;
+        }
+
+        @Override
+        public boolean tryLock(long timeoutSec) {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                success = lock.tryLock(timeoutSec);
+                return success;
+            } finally {
+                acquired(start, success);
+            }
+        }
+
+        @Override
+        public boolean lock(long waitTime, TimeUnit unit) throws InterruptedException {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                success = lock.lock(waitTime, unit);
+                return success;
+            } finally {
+                acquired(start, success);
+            }
+        }
+
+        @Override
+        public void unLock() {
+            try {
+                lock.unLock();
+            } finally {
+                if (holds > 0 && --holds == 0) {
+                    category.holdMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - acquiredAt));
+                }
+            }
+        }
+
+        private void acquired(long start, boolean success) {
+            long now = System.nanoTime();
+            category.attempts.increment();
+            category.acquireMicros.record(TimeUnit.NANOSECONDS.toMicros(now - start));
+            if (!success) {
+                category.failed.increment();
+                contended(name);
+                return;
+            }
+            category.acquired.increment();
+            if (holds++ == 0) {
+                acquiredAt = now;
+            }
+        }
+    }
+}
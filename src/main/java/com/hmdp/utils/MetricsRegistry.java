@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 进程内的简单指标表，按名字注册计数器、直方图和gauge，通过 GET /metrics 查看
+ */
+@Component
+public class MetricsRegistry {
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Supplier<?>> gauges = new ConcurrentHashMap<>();
+
+    //获取(没有则创建)计数器，调用方最好把返回值存成字段，避免每次都查map
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    //获取(没有则创建)直方图，同样建议存成字段
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    //注册一个在查看时才计算的指标，同名的后注册的覆盖先注册的
+    public void gauge(String name, Supplier<?> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    //所有指标的快照，按名字排序
+    public Map<String, Object> snapshot() {
+        return snapshot("");
+    }
+
+    //名字以prefix开头的指标的快照，按名字排序
+    public Map<String, Object> snapshot(String prefix) {
+        Map<String, Object> result = new TreeMap<>();
+        counters.forEach((name, counter) -> {
+            if (name.startsWith(prefix)) {
+                result.put(name, counter.sum());
+            }
+        });
+        histograms.forEach((name, histogram) -> {
+            if (name.startsWith(prefix)) {
+                result.put(name, histogram.snapshot());
+            }
+        });
+        gauges.forEach((name, gauge) -> {
+            if (name.startsWith(prefix)) {
+                result.put(name, gauge.get());
+            }
+        });
+        return result;
+    }
+}
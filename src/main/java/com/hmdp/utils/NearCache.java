@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.config.CacheProperties;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * CacheClient的本地一级缓存：key和Redis里的key一样，value是已经反序列化好的对象，命中时只有一次本地查找。
+ * 条数和有效期都有上限(Hutool LRUCache，有效期从写入开始算)。
+ * 数据更新时CacheClient.delete()删除Redis里的缓存之后往 cache:invalidate 广播key，各实例收到后删掉本地的那一份；
+ * 广播和读Redis之间的竞争可能让旧值再写进本地缓存，这种情况最多存在ttl-millis。
+ * 缓存的对象是各个请求共用的，调用方不要修改
+ */
+@Component
+public class NearCache {
+
+    //数据库里也不存在的数据(缓存穿透的空值)，和"本地没有缓存"区分开
+    public static final Object NULL_VALUE = new Object();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final CacheProperties.Near config;
+    private final LRUCache<String, Object> cache;
+    private final LongAdder hits;
+    private final LongAdder misses;
+
+    public NearCache(CacheProperties cacheProperties, MetricsRegistry metricsRegistry) {
+        this.config = cacheProperties.getNear();
+        this.cache = config.isEnabled() ? CacheUtil.newLRUCache(config.getMaximumSize(), config.getTtlMillis()) : null;
+        this.hits = metricsRegistry.counter("cache.near.hits");
+        this.misses = metricsRegistry.counter("cache.near.misses");
+    }
+
+    @PostConstruct
+    private void init() {
+        if (cache == null) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> cache.remove(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 查本地缓存
+     * @return 没开启或者没有缓存时返回null，缓存的是空值时返回NULL_VALUE
+     */
+    public Object get(String key) {
+        if (cache == null) {
+            return null;
+        }
+        // 不更新访问时间，有效期从写入开始算
+        Object value = cache.get(key, false);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    //写入本地缓存，value为null时缓存空值
+    public void put(String key, Object value) {
+        if (cache != null) {
+            cache.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+
+    /**
+     * 删除本地缓存并通知所有实例删除，要在删除Redis里的缓存之后调用。
+     * 本实例没开启本地缓存也要广播，别的实例可能开启了
+     */
+    public void invalidate(String key) {
+        if (cache != null) {
+            cache.remove(key);
+        }
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+}
@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.config.SeckillProperties;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STATUS_KEY;
+
+/**
+ * 秒杀订单状态：Redis hash seckill:status:{orderId}(字段userId、status，带过期时间) + 本地近端缓存。
+ * QUEUED由seckill.lua在下单成功时写入，消费者落库后改成PERSISTED或FAILED，超时未支付被取消后改成CANCELLED，
+ * 客户端拿着订单id轮询这里，而不是反复调用秒杀接口
+ */
+@Component
+public class OrderStatusStore {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String PERSISTED = "PERSISTED";
+    public static final String FAILED = "FAILED";
+    //未支付超时被取消，由UnpaidOrderCanceller写入
+    public static final String CANCELLED = "CANCELLED";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private LRUCache<Long, Entry> nearCache;
+
+    @PostConstruct
+    private void init() {
+        nearCache = CacheUtil.newLRUCache(seckillProperties.getStatusNearCacheSize());
+    }
+
+    //分段库存的下单不经过seckill.lua，由Java写入QUEUED
+    public void queued(Long orderId, Long userId) {
+        String key = SECKILL_STATUS_KEY + orderId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hSet(key, "userId", userId.toString());
+            conn.hSet(key, "status", QUEUED);
+            conn.expire(key, seckillProperties.getStatusTtlSeconds());
+            return null;
+        });
+    }
+
+    //消费者处理完一批订单后调用，一次pipeline写入
+    public void update(Collection<Long> persisted, Collection<Long> failed) {
+        if (persisted.isEmpty() && failed.isEmpty()) {
+            return;
+        }
+        long ttl = seckillProperties.getStatusTtlSeconds();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long orderId : persisted) {
+                conn.hSet(SECKILL_STATUS_KEY + orderId, "status", PERSISTED);
+                conn.expire(SECKILL_STATUS_KEY + orderId, ttl);
+            }
+            for (Long orderId : failed) {
+                conn.hSet(SECKILL_STATUS_KEY + orderId, "status", FAILED);
+                conn.expire(SECKILL_STATUS_KEY + orderId, ttl);
+            }
+            return null;
+        });
+    }
+
+    //超时未支付的订单被取消后调用
+    public void cancelled(Long orderId) {
+        String key = SECKILL_STATUS_KEY + orderId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hSet(key, "status", CANCELLED);
+            conn.expire(key, seckillProperties.getStatusTtlSeconds());
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态，只能查自己的订单
+     * @return 订单不存在、已过期或者不是这个用户的订单时返回null
+     */
+    public String get(Long orderId, Long userId) {
+        // 1.先查本地
+        Entry entry = nearCache.get(orderId, false);
+        if (entry == null) {
+            // 2.再查Redis HMGET seckill:status:{orderId} userId status
+            List<Object> values = stringRedisTemplate.opsForHash()
+                    .multiGet(SECKILL_STATUS_KEY + orderId, Arrays.asList("userId", "status"));
+            if (values.get(0) == null || values.get(1) == null) {
+                return null;
+            }
+            entry = new Entry(Long.valueOf(values.get(0).toString()), values.get(1).toString());
+            // 3.终态缓存久一点，QUEUED只缓存很短的时间，挡住客户端的高频轮询就够了
+            long ttl = QUEUED.equals(entry.status)
+                    ? seckillProperties.getStatusNearCacheQueuedMillis()
+                    : seckillProperties.getStatusNearCacheFinalMillis();
+            nearCache.put(orderId, entry, ttl);
+        }
+        return entry.userId.equals(userId) ? entry.status : null;
+    }
+
+    private static class Entry {
+        private final Long userId;
+        private final String status;
+
+        Entry(Long userId, String status) {
+            this.userId = userId;
+            this.status = status;
+        }
+    }
+}
@@ -10,11 +10,28 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_TIME_KEY = "seckill:time:";
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    public static final String SECKILL_UNPAID_KEY = "seckill:unpaid";
+    public static final String STREAM_ORDERS_KEY = "stream.orders";
+    public static final String STREAM_ORDERS_GROUP = "g1";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
+    public static final String STREAM_ORDERS_ARCHIVED_KEY = "stream.orders:archived";
+    public static final String LOCK_STREAM_TRIM_KEY = "lock:stream.orders:trim";
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
+    public static final String LOCK_ORDER_KEY = "lock:order:";
+    public static final Long LOCK_ORDER_WAIT_MILLIS = 500L;
+    public static final String LOCK_UNLOCK_CHANNEL = "lock:unlock";
+    public static final String SECKILL_STATE_CHANNEL = "seckill:voucher:state";
+    public static final String SECKILL_RATE_LIMIT_KEY = "ratelimit:seckill:";
+    public static final String ID_WORKER_KEY = "idworker:worker:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
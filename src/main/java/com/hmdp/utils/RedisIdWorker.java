@@ -1,36 +1,94 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 //基于redis的全局ID生成器，调用nextId就可以生成
+//segment模式下用INCRBY一次预留一段序列号，本地发放，ID格式(时间戳<<32 | 当天的序列号)和redis模式完全一样
+//snowflake模式下用从Redis租到的workerId在本地生成，见SnowflakeIdGenerator，租约失效或者时钟回拨太多时临时退回redis模式
+@Slf4j
 @Component
 public class RedisIdWorker {
     private static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IdWorkerProperties idWorkerProperties;
+
+    @Resource
+    private WorkerIdLease workerIdLease;
+
+    //每个业务前缀一个号段缓冲
+    private final ConcurrentHashMap<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    //每个业务前缀一个snowflake生成器
+    private final ConcurrentHashMap<String, SnowflakeIdGenerator> generators = new ConcurrentHashMap<>();
+
+    //上次打印退回redis模式警告的时间，最多10秒打印一次
+    private final AtomicLong lastFallbackWarn = new AtomicLong();
+
+    //异步预取号段的线程，第一次预取时才创建线程，随bean销毁关闭
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("id-segment-prefetch-").setDaemon(true).build());
+
+    //当天的key缓存起来，不用每次都格式化日期
+    private volatile DayKey dayKey = new DayKey(-1, "");
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
     public long nextId(String keyPrefix) {//这个keyPrefix就是业务的前缀，因为有很多不用业务都需要一个id作为key
+        IdWorkerProperties.Mode mode = idWorkerProperties.modeOf(keyPrefix);
+        if (mode == IdWorkerProperties.Mode.SNOWFLAKE) {
+            //0.本地生成，生成不了就退回redis模式
+            long id = nextSnowflakeId(keyPrefix);
+            if (id > 0) {
+                return id;
+            }
+            mode = IdWorkerProperties.Mode.REDIS;
+        }
+
         //1.生成时间戳
         //思路：我们先设置了一个2022-01-01 00:00:00作为初始时间
         //然后我们再计算一下现在到1970-01-01 00:00:00 UTC的时间
         //再计算一下现在到UTC的时间减去初始时间，就是现在到初始时间过了多少秒了
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         //2.生成序列号
-        //2.1 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.2自增长
-        //increment：对指定的 键 (key) 的值执行自增，如果该 key 不存在，则会初始化为 0，然后执行 +1 操作。
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count;
+        if (mode == IdWorkerProperties.Mode.SEGMENT) {
+            //2.1 从本地号段里取
+            count = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(Math.floorDiv(nowSecond, SECONDS_PER_DAY));
+        } else {
+            //2.1 获取当前日期，精确到天
+            String date = date(Math.floorDiv(nowSecond, SECONDS_PER_DAY));
+            //2.2自增长
+            //increment：对指定的 键 (key) 的值执行自增，如果该 key 不存在，则会初始化为 0，然后执行 +1 操作。
+            count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        }
 
 
         //3.拼接并且返回
@@ -38,6 +96,174 @@ public class RedisIdWorker {
         return timestamp << 32 | count;
     }
 
+    //一次生成n个id，只访问一次Redis(INCRBY n)，批量下单时用；segment、snowflake模式下直接在本地生成
+    public long[] nextIds(String keyPrefix, int n) {
+        long[] ids = new long[n];
+        if (idWorkerProperties.modeOf(keyPrefix) != IdWorkerProperties.Mode.REDIS) {
+            for (int i = 0; i < n; i++) {
+                ids[i] = nextId(keyPrefix);
+            }
+            return ids;
+        }
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        String date = date(Math.floorDiv(nowSecond, SECONDS_PER_DAY));
+        //自增n，返回的是这n个序列号里最大的那个
+        long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, n);
+        for (int i = 0; i < n; i++) {
+            ids[i] = timestamp << 32 | (end - n + 1 + i);
+        }
+        return ids;
+    }
+
+    //snowflake模式生成一个id，没有有效的workerId或者时钟回拨超过上限时返回-1
+    private long nextSnowflakeId(String keyPrefix) {
+        int workerId = workerIdLease.workerId();
+        if (workerId >= 0) {
+            try {
+                return generators.computeIfAbsent(keyPrefix, k -> new SnowflakeIdGenerator(
+                        idWorkerProperties.getWorkerIdBits(), idWorkerProperties.getMaxClockBackwardMillis()))
+                        .nextId(workerId);
+            } catch (IllegalStateException e) {
+                warnFallback(keyPrefix, e.getMessage());
+                return -1;
+            }
+        }
+        warnFallback(keyPrefix, "没有有效的workerId");
+        return -1;
+    }
+
+    private void warnFallback(String keyPrefix, String reason) {
+        long now = System.currentTimeMillis();
+        long last = lastFallbackWarn.get();
+        if (now - last >= 10000 && lastFallbackWarn.compareAndSet(last, now)) {
+            log.warn("snowflake模式暂时不可用, 退回redis模式, prefix={}, 原因: {}", keyPrefix, reason);
+        }
+    }
+
+    //epochDay对应的日期 yyyy:MM:dd，一天只格式化一次
+    private String date(long epochDay) {
+        DayKey key = dayKey;
+        if (key.epochDay != epochDay) {
+            key = new DayKey(epochDay, LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER));
+            dayKey = key;
+        }
+        return key.date;
+    }
+
+    /**
+     * 一个业务前缀的号段缓冲：current是正在发放的号段，next是预取好的下一个号段。
+     * 发号只有一次AtomicLong自增，号段用完或者跨天时才加锁切换；
+     * 号段剩余到阈值的那一个序列号(每个序列号只会发给一个线程)负责触发异步预取，所以每个号段最多预取一次
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long next(long epochDay) {
+            while (true) {
+                Segment segment = current;
+                // 1.还没有号段，或者跨天了(序列号按天从1开始)，切换到当天的号段
+                if (segment == null || segment.epochDay != epochDay) {
+                    switchSegment(segment, epochDay);
+                    continue;
+                }
+                // 2.从号段里取一个序列号
+                long count = segment.cursor.getAndIncrement();
+                if (count < segment.end) {
+                    if (segment.end - count == segment.prefetchAt) {
+                        prefetch(epochDay);
+                    }
+                    return count;
+                }
+                // 3.号段用完了，换下一个
+                switchSegment(segment, epochDay);
+            }
+        }
+
+        //把用完或者过期的号段换掉，优先用预取好的，没有就同步向Redis申请
+        private synchronized void switchSegment(Segment expected, long epochDay) {
+            if (current != expected) {
+                // 别的线程已经换过了
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            current = prefetched != null && prefetched.epochDay == epochDay ? prefetched : reserve(epochDay);
+        }
+
+        private void prefetch(long epochDay) {
+            if (next != null || !prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                prefetchExecutor.submit(() -> {
+                    try {
+                        Segment segment = reserve(epochDay);
+                        synchronized (this) {
+                            // 预取期间当前号段已经被同步申请的号段换掉了，预取到的号段可能比它小，丢掉，保证发出的ID递增
+                            Segment active = current;
+                            if (next == null && (active == null || segment.start >= active.end)) {
+                                next = segment;
+                            }
+                        }
+                    } catch (Exception e) {
+                        // 预取失败不影响发号，号段用完时会同步申请
+                        log.warn("预取号段失败, prefix={}", keyPrefix, e);
+                    } finally {
+                        prefetching.set(false);
+                    }
+                });
+            } catch (Exception e) {
+                prefetching.set(false);
+            }
+        }
+
+        //INCRBY icr:{prefix}:{yyyy:MM:dd} segmentSize，返回值是这一段里最大的序列号
+        private Segment reserve(long epochDay) {
+            int size = idWorkerProperties.getSegmentSize();
+            Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date(epochDay), size);
+            long prefetchAt = Math.max(1, (long) (size * idWorkerProperties.getPrefetchRatio()));
+            return new Segment(epochDay, end - size + 1, end + 1, prefetchAt);
+        }
+    }
+
+    private static class Segment {
+        private final long epochDay;
+        //号段的起始序列号
+        private final long start;
+        //下一个要发的序列号
+        private final AtomicLong cursor;
+        //号段的结束位置(不含)
+        private final long end;
+        //剩余多少个序列号时预取下一段
+        private final long prefetchAt;
+
+        Segment(long epochDay, long start, long end, long prefetchAt) {
+            this.epochDay = epochDay;
+            this.start = start;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    private static class DayKey {
+        private final long epochDay;
+        private final String date;
+
+        DayKey(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
 //    public static void main(String[] args) {
 //    //2022-01-01 00:00:00 UTC 距离 1970-01-01 00:00:00 UTC 有 1640995200 秒。
 //        LocalDateTime time =LocalDateTime.of(2022, 1, 1, 0, 0, 0);
@@ -0,0 +1,51 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+@Component
+public class SeckillRateLimitInterceptor implements HandlerInterceptor {//作用：秒杀接口按券限流，放在最前面，被限流的请求不查登录用户也不执行Lua
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //1. 从路径 /voucher-order/seckill/{id} 中取出优惠券id，组合抢购从参数ids中取
+        @SuppressWarnings("unchecked")
+        Map<String, String> pathVariables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String id = pathVariables == null ? null : pathVariables.get("id");
+        String bundle = request.getParameter("ids");
+        List<String> ids = StrUtil.isNumeric(id) ? Collections.singletonList(id)
+                : StrUtil.isBlank(bundle) ? Collections.emptyList() : StrUtil.split(bundle, ',', true, true);
+        //2. 按券限流，组合抢购每张券都要过券的限流
+        for (String voucherId : ids) {
+            if (StrUtil.isNumeric(voucherId) && !seckillRateLimiter.tryAcquireVoucher(Long.valueOf(voucherId))) {
+                //3. 被限流，直接返回429
+                reject(response);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //返回429，按券和按用户的限流共用
+    static void reject(HttpServletResponse response) throws IOException {
+        response.setStatus(429);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getOutputStream().write(JSONUtil.toJsonStr(Result.fail("活动太火爆，请稍后再试")).getBytes(StandardCharsets.UTF_8));
+    }
+}
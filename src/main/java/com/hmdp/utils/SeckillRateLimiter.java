@@ -0,0 +1,127 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.config.SeckillProperties;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RATE_LIMIT_KEY;
+
+/**
+ * 秒杀接口限流：每个实例每张券一个本地令牌桶、每个用户一个本地令牌桶，
+ * 可选再加一个所有实例共享的Redis令牌桶(rate_limit.lua)。
+ * 按券的限流在查登录用户之前(SeckillRateLimitInterceptor)，过载时被拒绝的请求不会产生任何网络调用；
+ * 按用户的限流在登录之后(SeckillUserRateLimitInterceptor)，按查出来的用户id限流，换token绕不过去。
+ * 只给vouchers里单独配置过的券和本地状态表里确实存在的券建令牌桶，其他券id共用一个桶，
+ * 随便编的券id不会让令牌桶无限增长
+ */
+@Component
+public class SeckillRateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+    static {
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private MetricsRegistry metricsRegistry;
+
+    @Resource
+    private SeckillVoucherLocalState seckillVoucherLocalState;
+
+    private final ConcurrentHashMap<Long, TokenBucket> voucherBuckets = new ConcurrentHashMap<>();
+    private TokenBucket unknownVoucherBucket;
+    private LRUCache<Long, TokenBucket> userBuckets;
+
+    private LongAdder voucherRejected;
+    private LongAdder userRejected;
+    private LongAdder clusterRejected;
+
+    @PostConstruct
+    private void init() {
+        SeckillProperties.RateLimit config = seckillProperties.getRateLimit();
+        userBuckets = CacheUtil.newLRUCache(config.getUserBucketCapacity(), config.getUserIdleMillis());
+        unknownVoucherBucket = new TokenBucket(config.getVoucherPermitsPerSecond(), config.getVoucherBurst());
+        voucherRejected = metricsRegistry.counter("seckill.ratelimit.rejected.voucher");
+        userRejected = metricsRegistry.counter("seckill.ratelimit.rejected.user");
+        clusterRejected = metricsRegistry.counter("seckill.ratelimit.rejected.cluster");
+    }
+
+    /**
+     * 按券限流：本实例上这张券的令牌桶，再加集群共享的令牌桶。在查登录用户之前调用，被拒绝的请求不访问Redis
+     * @param voucherId 优惠券id
+     * @return false表示被限流
+     */
+    public boolean tryAcquireVoucher(Long voucherId) {
+        SeckillProperties.RateLimit config = seckillProperties.getRateLimit();
+        if (!config.isEnabled()) {
+            return true;
+        }
+        SeckillProperties.VoucherLimit voucherLimit = config.getVouchers().get(voucherId);
+
+        // 1.本实例上这张券的总流量；单独配置过的券和本地已知的券各用各的桶，其他券id共用一个桶
+        TokenBucket voucherBucket = voucherLimit == null && !seckillVoucherLocalState.isKnown(voucherId) ? unknownVoucherBucket
+                : voucherBuckets.computeIfAbsent(voucherId, id -> new TokenBucket(
+                valueOf(voucherLimit == null ? null : voucherLimit.getPermitsPerSecond(), config.getVoucherPermitsPerSecond()),
+                valueOf(voucherLimit == null ? null : voucherLimit.getBurst(), config.getVoucherBurst())));
+        if (!voucherBucket.tryAcquire()) {
+            voucherRejected.increment();
+            return false;
+        }
+
+        // 2.集群共享的令牌桶
+        if (config.isClusterEnabled()) {
+            double rate = valueOf(voucherLimit == null ? null : voucherLimit.getClusterPermitsPerSecond(), config.getClusterPermitsPerSecond());
+            int burst = valueOf(voucherLimit == null ? null : voucherLimit.getClusterBurst(), config.getClusterBurst());
+            Long result = stringRedisTemplate.execute(
+                    RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(SECKILL_RATE_LIMIT_KEY + voucherId),
+                    String.valueOf(rate), String.valueOf(burst), String.valueOf(System.currentTimeMillis())
+            );
+            if (result == null || result == 0) {
+                clusterRejected.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按用户限流，防止单个用户刷接口。在登录拦截器之后调用
+     * @param userId 登录用户id
+     * @return false表示被限流
+     */
+    public boolean tryAcquireUser(Long userId) {
+        SeckillProperties.RateLimit config = seckillProperties.getRateLimit();
+        if (!config.isEnabled()) {
+            return true;
+        }
+        TokenBucket userBucket = userBuckets.get(userId, true,
+                () -> new TokenBucket(config.getUserPermitsPerSecond(), config.getUserBurst()));
+        if (!userBucket.tryAcquire()) {
+            userRejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private static <T> T valueOf(T value, T defaultValue) {
+        return value == null ? defaultValue : value;
+    }
+}
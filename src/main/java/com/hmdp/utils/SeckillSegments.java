@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_TIME_KEY;
+
+/**
+ * 分段库存的key规则。
+ * 第i段的库存key是 seckill:stock:{voucherId:i}，用户集合是 seckill:order:{voucherId:i}，
+ * 时间窗口每段各存一份 seckill:time:{voucherId:i}。
+ * 花括号里是Redis Cluster的hash tag，同一段的key落在同一个slot，不同段落在不同slot
+ */
+public class SeckillSegments {
+
+    public static String stockKey(Long voucherId, int segment) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    public static String orderKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    public static String timeKey(Long voucherId, int segment) {
+        return SECKILL_TIME_KEY + "{" + voucherId + ":" + segment + "}";
+    }
+
+    //用户固定路由到自己的主段，一人一单只在主段的用户集合里判断
+    public static int homeSegment(Long userId, int segments) {
+        return (int) Math.floorMod(userId, (long) segments);
+    }
+
+    //把库存尽量平均拆到各段，除不尽的部分从第0段开始每段多放1个
+    public static int[] split(int stock, int segments) {
+        int[] result = new int[segments];
+        for (int i = 0; i < segments; i++) {
+            result[i] = stock / segments + (i < stock % segments ? 1 : 0);
+        }
+        return result;
+    }
+}
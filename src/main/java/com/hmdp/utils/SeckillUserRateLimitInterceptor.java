@@ -0,0 +1,33 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@Component
+public class SeckillUserRateLimitInterceptor implements HandlerInterceptor {//作用：秒杀接口按用户限流，放在登录拦截器后面
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //1. 按登录用户限流(token已经由RefreshTokenInterceptor换成了用户，没登录的请求被LoginInterceptor拦掉了)，
+        //   不能按请求头里的token，否则每次换一个随便编的token就能绕过；组合抢购也只算一次
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        if (seckillRateLimiter.tryAcquireUser(user.getId())) {
+            return true;
+        }
+        //2. 被限流，直接返回429
+        SeckillRateLimitInterceptor.reject(response);
+        return false;
+    }
+}
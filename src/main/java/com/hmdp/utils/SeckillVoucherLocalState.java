@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STATE_CHANNEL;
+
+/**
+ * 秒杀券的JVM本地状态表：售罄标记 + 秒杀时间窗口。
+ * 已经售罄、尚未开始、已经结束的请求在本地直接拒绝，不用再跑一次Lua脚本。
+ * 售罄/补库存通过Redis发布订阅广播给其他实例。
+ * 状态表里只放确实存在的秒杀券；查不到的券id放进一个有容量上限、短时间过期的LRU，
+ * 随便编的券id不会让状态表无限增长，同一个不存在的id短时间内也不会反复查库
+ */
+@Slf4j
+@Component
+public class SeckillVoucherLocalState {
+
+    private static final String SOLD_OUT = "soldout:";
+    private static final String RESET = "reset:";
+    //不存在的券id最多记多少个、记多久
+    private static final int MISSING_CAPACITY = 10000;
+    private static final long MISSING_TTL_MILLIS = 5000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private final ConcurrentHashMap<Long, VoucherState> states = new ConcurrentHashMap<>();
+    private final Cache<Long, Boolean> missing = CacheUtil.newLRUCache(MISSING_CAPACITY, MISSING_TTL_MILLIS);
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this::onMessage, new ChannelTopic(SECKILL_STATE_CHANNEL));
+    }
+
+    /**
+     * 本地校验是否可以参加秒杀
+     * @param voucherId 优惠券id
+     * @param dbFallback 本地没有这张券的时间窗口时，用来查询秒杀券的函数(每个实例每张券只查一次)
+     * @return null表示可以继续走Redis，否则是拒绝的原因
+     */
+    public String check(Long voucherId, Function<Long, SeckillVoucher> dbFallback) {
+        VoucherState state = states.get(voucherId);
+        if (state == null) {
+            // 最近查过不存在的券id，不再查库
+            if (missing.containsKey(voucherId)) {
+                return "秒杀券不存在";
+            }
+            SeckillVoucher voucher = dbFallback.apply(voucherId);
+            if (voucher == null) {
+                missing.put(voucherId, Boolean.TRUE);
+                return "秒杀券不存在";
+            }
+            state = VoucherState.of(voucher);
+            VoucherState old = states.putIfAbsent(voucherId, state);
+            if (old != null) {
+                state = old;
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (now < state.beginMillis) {
+            return "秒杀尚未开始";
+        }
+        if (now > state.endMillis) {
+            return "秒杀已经结束";
+        }
+        long soldOutAt = state.soldOutAt;
+        if (soldOutAt > 0 && now - soldOutAt < seckillProperties.getSoldOutTtlMillis()) {
+            return "库存不足";
+        }
+        return null;
+    }
+
+    //预热时直接用已经查出来的秒杀券填充本地状态
+    public void warm(SeckillVoucher voucher) {
+        states.put(voucher.getVoucherId(), VoucherState.of(voucher));
+        missing.remove(voucher.getVoucherId());
+    }
+
+    //本地已经加载过的秒杀券(都是确实存在的)，不查数据库
+    public boolean isKnown(Long voucherId) {
+        return states.containsKey(voucherId);
+    }
+
+    //库存分段数，必须在check之后调用(check会加载这张券的状态)
+    public int getSegments(Long voucherId) {
+        VoucherState state = states.get(voucherId);
+        return state == null ? 1 : state.segments;
+    }
+
+    //Lua返回库存不足：本地打标记，并通知其他实例
+    public void markSoldOut(Long voucherId) {
+        if (setSoldOut(voucherId, System.currentTimeMillis())) {
+            stringRedisTemplate.convertAndSend(SECKILL_STATE_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    //新增秒杀券或者补库存：清掉本地状态(下次请求会重新加载时间窗口)，并通知其他实例
+    //在事务里调用时等事务提交后再广播，否则其他实例可能在提交前重新加载到旧数据
+    public void reset(Long voucherId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    doReset(voucherId);
+                }
+            });
+            return;
+        }
+        doReset(voucherId);
+    }
+
+    private void doReset(Long voucherId) {
+        states.remove(voucherId);
+        missing.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_STATE_CHANNEL, RESET + voucherId);
+    }
+
+    private boolean setSoldOut(Long voucherId, long now) {
+        VoucherState state = states.get(voucherId);
+        if (state == null) {
+            // 还没加载过时间窗口，不打标记，交给下一次check去加载
+            return false;
+        }
+        long soldOutAt = state.soldOutAt;
+        boolean changed = soldOutAt == 0 || now - soldOutAt >= seckillProperties.getSoldOutTtlMillis();
+        state.soldOutAt = now;
+        return changed;
+    }
+
+    private void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                setSoldOut(Long.valueOf(body.substring(SOLD_OUT.length())), System.currentTimeMillis());
+            } else if (body.startsWith(RESET)) {
+                Long voucherId = Long.valueOf(body.substring(RESET.length()));
+                states.remove(voucherId);
+                missing.remove(voucherId);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无法识别的秒杀券状态消息: {}", body);
+        }
+    }
+
+    private static class VoucherState {
+        private long beginMillis;
+        private long endMillis;
+        private int segments = 1;
+        private volatile long soldOutAt;
+
+        static VoucherState of(SeckillVoucher voucher) {
+            VoucherState state = new VoucherState();
+            state.beginMillis = toMillis(voucher.getBeginTime(), Long.MIN_VALUE);
+            state.endMillis = toMillis(voucher.getEndTime(), Long.MAX_VALUE);
+            if (voucher.getSegments() != null && voucher.getSegments() > 1) {
+                state.segments = voucher.getSegments();
+            }
+            return state;
+        }
+
+        private static long toMillis(LocalDateTime time, long defaultValue) {
+            return time == null ? defaultValue : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+}
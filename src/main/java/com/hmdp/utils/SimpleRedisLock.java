@@ -1,30 +1,63 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import cn.hutool.core.util.BooleanUtil;
-import org.springframework.beans.factory.annotation.Autowired;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.data.redis.core.script.RedisScript;
 
-import javax.annotation.Resource;
 import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+
+/**
+ * 基于Redis的可重入锁：锁是一个hash，field是线程标识，value是重入次数，加锁、续期、释放都用Lua脚本保证原子性。
+ * lock()拿不到锁时不轮询，而是在本地登记为等待者，等SimpleRedisLockSubscriber收到释放通知再去抢，
+ * 每次最多等到锁的剩余过期时间(持有者宕机时锁自然过期，不会有通知)。
+ * lock()拿到的锁由看门狗每1/3过期时间续期一次，持有锁的线程释放锁或者结束后停止续期
+ */
+@Slf4j
 public class SimpleRedisLock implements ILock{
 
     private String name;//锁的名字
     private  StringRedisTemplate stringRedisTemplate;
     private  static final String KEY_PREFIX = "lock:";//锁的key前缀
     private  static final String ID_PREFIX = UUID.randomUUID().toString(true)+"-";
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT = new DefaultRedisScript<>();
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>();
     private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>();
     //DefaultRedisScript是hutool提供的一个类，用于执行lua脚本
     static {
+        LOCK_SCRIPT.setLocation(new ClassPathResource("lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lock_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
         UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
         UNLOCK_SCRIPT.setResultType(Long.class);
     }
 
+    //lock()拿到的锁的过期时间，看门狗每1/3续期一次
+    private static final long WATCHDOG_LEASE_MILLIS = 30000;
+    //没有订阅释放通知时(不在Spring容器里用)，退回轮询的间隔
+    private static final long POLL_MILLIS = 100;
+
+    //看门狗线程，所有锁共用
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("redis-lock-watchdog-").setDaemon(true).build());
+    //正在续期的锁，key是 锁的key + 线程标识，同一个线程重入不会重复续期
+    private static final ConcurrentHashMap<String, ScheduledFuture<?>> RENEWALS = new ConcurrentHashMap<>();
+    //本JVM里正在等待的锁，key是锁的key
+    private static final ConcurrentHashMap<String, Waiters> WAITERS = new ConcurrentHashMap<>();
+    //是否已经订阅了释放通知
+    private static volatile boolean subscribed;
+
     public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
@@ -35,14 +68,110 @@ public class SimpleRedisLock implements ILock{
     @Override
     public boolean tryLock(long timeoutSec) {
 
-        //获得线程id作为value
+        //获得线程id作为hash的field
         String threadId = ID_PREFIX+Thread.currentThread().getId();
 
-        // 获得锁
-        Boolean success = stringRedisTemplate.opsForValue()
-                .setIfAbsent(KEY_PREFIX + name, threadId, timeoutSec, TimeUnit.SECONDS);
+        // 获得锁，返回null表示成功
+        return acquire(threadId, TimeUnit.SECONDS.toMillis(timeoutSec)) == null;
+    }
+
+    @Override
+    public boolean lock(long waitTime, TimeUnit unit) throws InterruptedException {
+        String threadId = ID_PREFIX+Thread.currentThread().getId();
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        String key = KEY_PREFIX + name;
+        // 1.先登记为等待者再抢锁，抢锁失败之后锁才释放的话，一定能收到通知
+        Waiters waiters = WAITERS.compute(key, (k, w) -> {
+            if (w == null) {
+                w = new Waiters();
+            }
+            w.count++;
+            return w;
+        });
+        try {
+            while (true) {
+                // 2.抢锁，成功就开启看门狗
+                Long ttl = acquire(threadId, WATCHDOG_LEASE_MILLIS);
+                if (ttl == null) {
+                    startWatchdog(threadId);
+                    return true;
+                }
+                // 3.超过等待时间
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 4.等待释放通知，最多等到锁过期
+                long wait = ttl >= 0 ? Math.min(ttl, remaining) : remaining;
+                if (!subscribed) {
+                    wait = Math.min(wait, POLL_MILLIS);
+                }
+                waiters.permits.tryAcquire(wait, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            // 5.没有人等这把锁了就移除登记
+            WAITERS.computeIfPresent(key, (k, w) -> --w.count == 0 ? null : w);
+        }
+    }
+
+    //执行lock.lua，返回null表示拿到了锁，否则是锁的剩余过期时间(毫秒)
+    private Long acquire(String threadId, long leaseMillis) {
+        return stringRedisTemplate.execute(
+                LOCK_SCRIPT,
+                Collections.singletonList(KEY_PREFIX + name),
+                threadId, String.valueOf(leaseMillis)
+        );
+    }
+
+    private void startWatchdog(String threadId) {
+        Thread holder = Thread.currentThread();
+        RENEWALS.computeIfAbsent(KEY_PREFIX + name + ":" + threadId, renewalKey -> WATCHDOG.scheduleAtFixedRate(
+                () -> renew(renewalKey, threadId, holder),
+                WATCHDOG_LEASE_MILLIS / 3, WATCHDOG_LEASE_MILLIS / 3, TimeUnit.MILLISECONDS));
+    }
+
+    private void renew(String renewalKey, String threadId, Thread holder) {
+        // 持有锁的线程已经结束，不再续期，锁自然过期
+        if (!holder.isAlive()) {
+            stopWatchdog(renewalKey);
+            return;
+        }
+        try {
+            Long renewed = stringRedisTemplate.execute(
+                    RENEW_SCRIPT,
+                    Collections.singletonList(KEY_PREFIX + name),
+                    threadId, String.valueOf(WATCHDOG_LEASE_MILLIS)
+            );
+            if (renewed == null || renewed == 0) {
+                // 锁已经不是自己的了
+                stopWatchdog(renewalKey);
+            }
+        } catch (Exception e) {
+            // 续期失败下次再试，锁还有2/3的过期时间
+            log.warn("锁续期失败, key={}", KEY_PREFIX + name, e);
+        }
+    }
+
+    private static void stopWatchdog(String renewalKey) {
+        ScheduledFuture<?> renewal = RENEWALS.remove(renewalKey);
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
+    }
 
-        return BooleanUtil.isTrue(success);
+    /**
+     * 收到某把锁的释放通知，叫醒一个本地等待者去抢锁，由SimpleRedisLockSubscriber调用。
+     * 最多攒一个许可：抢到锁的等待者释放时还会再发通知
+     */
+    static void wakeUp(String key) {
+        Waiters waiters = WAITERS.get(key);
+        if (waiters != null && waiters.permits.availablePermits() == 0) {
+            waiters.permits.release();
+        }
+    }
+
+    static void subscribed() {
+        subscribed = true;
     }
 
 //    @Override
@@ -66,11 +195,23 @@ public class SimpleRedisLock implements ILock{
         //第一个参数UNLOCK_SCRIPT：是你提前写好的操作说明书（Lua脚本）。比如说明书上写着："检查这把锁是不是我自己的，如果是就打开，否则别碰它"。
         //(KEYS[1])第二个参数Collections.singletonList(...)：相当于你递给助手的钥匙串。虽然这里只有一把钥匙（比如lock:order123），但助手规定必须用钥匙串的形式传递，哪怕只有一把。
         //(ARGV[1])第三个参数ID_PREFIX+...：是你的身份证复印件（比如thread_25）。助手会拿着这个证件去核对锁上的签名，确保只有真正拥有锁的人才能开锁。
-        stringRedisTemplate.execute(
+        String threadId = ID_PREFIX+Thread.currentThread().getId();
+        Long result = stringRedisTemplate.execute(
                 UNLOCK_SCRIPT,
-                Collections.singletonList(KEY_PREFIX+name),//第二个参数是要接受一个集合，singletonList是返回一个不可变的集合
-                ID_PREFIX+Thread.currentThread().getId()
+                Collections.singletonList(KEY_PREFIX+name),//第二个参数是要接受一个集合
+                threadId, LOCK_UNLOCK_CHANNEL//ARGV[2]是释放通知的频道，频道不是key，不能放在KEYS里
         );
+        //重入次数减到0(锁已经释放)或者锁已经不是自己的了，停止看门狗
+        if (result == null || result == 1) {
+            stopWatchdog(KEY_PREFIX + name + ":" + threadId);
+        }
+    }
+
+    //一把锁在本JVM里的等待者
+    private static class Waiters {
+        private final Semaphore permits = new Semaphore(0);
+        //在compute里修改，不需要额外同步
+        private int count;
     }
 
 }
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+
+/**
+ * 订阅SimpleRedisLock的释放通知：unlock.lua在锁真正释放时往 lock:unlock 发布锁的key，
+ * 收到后叫醒本JVM里等待这把锁的线程。每个实例只订阅这一个频道，和锁的数量无关
+ */
+@Component
+public class SimpleRedisLockSubscriber {
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> SimpleRedisLock.wakeUp(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOCK_UNLOCK_CHANNEL));
+        SimpleRedisLock.subscribed();
+    }
+}
@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * snowflake模式的本地ID生成器，一个业务前缀一个。ID布局(和redis模式的ID放在同一个long里，互不冲突)：
+ * 高32位：从2022-01-01开始的秒数，和redis模式一样
+ * 第31位：1，redis模式的当天序列号不会超过2^31，这一位总是0，两种模式的ID不会重复
+ * 第21~30位：秒内的毫秒数(0~999)
+ * 中间workerIdBits位：workerId
+ * 低(21 - workerIdBits)位：每毫秒的序列号
+ * 发号只有一次CAS：state = 逻辑毫秒 << 序列号位数 | 序列号。逻辑时钟不会后退：
+ * 墙上时钟回拨时继续用原来的毫秒发号，某一毫秒的序列号用完时借用下一毫秒，
+ * 逻辑时钟超前墙上时钟超过maxClockBackwardMillis就抛出IllegalStateException，由调用方退回redis模式
+ */
+class SnowflakeIdGenerator {
+
+    private static final long BEGIN_MILLIS = 1640995200000L;
+    //本地时间相对UTC的偏移，和redis模式一样用本地时间算秒数。启动时固定下来，夏令时切换不会被当成时钟回拨
+    private static final long ZONE_OFFSET_MILLIS =
+            ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds() * 1000L;
+    private static final long SNOWFLAKE_FLAG = 1L << 31;
+    private static final int LOW_BITS = 21;
+
+    private final int sequenceBits;
+    private final long sequenceMask;
+    private final long maxClockBackwardMillis;
+    private final AtomicLong state = new AtomicLong();
+
+    SnowflakeIdGenerator(int workerIdBits, long maxClockBackwardMillis) {
+        if (workerIdBits < 1 || workerIdBits > LOW_BITS - 1) {
+            throw new IllegalArgumentException("worker-id-bits必须在1~" + (LOW_BITS - 1) + "之间");
+        }
+        this.sequenceBits = LOW_BITS - workerIdBits;
+        this.sequenceMask = (1L << sequenceBits) - 1;
+        this.maxClockBackwardMillis = maxClockBackwardMillis;
+    }
+
+    long nextId(int workerId) {
+        while (true) {
+            long now = System.currentTimeMillis() + ZONE_OFFSET_MILLIS - BEGIN_MILLIS;
+            long current = state.get();
+            long millis = current >>> sequenceBits;
+            long next;
+            if (now > millis) {
+                // 1.进入新的一毫秒，序列号从0开始
+                next = now << sequenceBits;
+            } else if ((current & sequenceMask) < sequenceMask) {
+                // 2.同一毫秒(或者时钟回拨了)，序列号+1
+                next = current + 1;
+            } else {
+                // 3.这一毫秒的序列号用完了，借用下一毫秒
+                next = (millis + 1) << sequenceBits;
+            }
+            long nextMillis = next >>> sequenceBits;
+            if (nextMillis - now > maxClockBackwardMillis) {
+                throw new IllegalStateException("时钟回拨或者发号过快, 逻辑时钟超前" + (nextMillis - now) + "ms");
+            }
+            if (state.compareAndSet(current, next)) {
+                long seconds = nextMillis / 1000;
+                long millisOfSecond = nextMillis % 1000;
+                return seconds << 32 | SNOWFLAKE_FLAG | millisOfSecond << LOW_BITS
+                        | (long) workerId << sequenceBits | (next & sequenceMask);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地令牌桶，无锁实现。
+ * 不真的存令牌数，而是记录"桶被取空的理论时间点"：每取一个令牌这个时间点往后推一个发放间隔，
+ * 时间点超出当前时间太多(超过桶容量对应的时长)就说明令牌用完了，CAS更新，不需要加锁
+ */
+public class TokenBucket {
+
+    //每发放一个令牌需要的纳秒数
+    private final long intervalNanos;
+    //桶容量对应的时长，允许的突发量 = burst个令牌
+    private final long burstNanos;
+    private final AtomicLong emptyAt;
+
+    /**
+     * @param permitsPerSecond 每秒发放的令牌数
+     * @param burst 桶容量，最多可以攒下的令牌数
+     */
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.burstNanos = intervalNanos * Math.max(burst, 1);
+        this.emptyAt = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long current = emptyAt.get();
+            // 桶是满的时候，从 now - burst 开始算
+            long next = Math.max(current, now - burstNanos) + intervalNanos;
+            if (next - now > 0) {
+                return false;
+            }
+            if (emptyAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 两级锁：先拿本地锁，再拿Redis锁(SimpleRedisLock)。
+ * 同一个JVM里争同一把锁的线程先在本地排队，只有拿到本地锁的那一个线程去Redis抢锁，
+ * Redis上的加锁请求数和实例数成正比，而不是和线程数成正比。
+ * 本地锁按锁名一把，带引用计数，持有和排队的线程都算一次引用，计数归零就从表里移除，
+ * 表的大小只和同时在用的锁名个数有关；不同的锁名之间不会互相阻塞。
+ * 两级都是可重入的，加锁和释放必须在同一个线程里
+ */
+public class TwoLevelLock implements ILock {
+
+    private static final ConcurrentHashMap<String, LocalLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final SimpleRedisLock redisLock;
+
+    /**
+     * @param name 锁的名字，和SimpleRedisLock一样，Redis里的key是 lock:{name}
+     */
+    public TwoLevelLock(String name, StringRedisTemplate stringRedisTemplate) {
+        this.name = name;
+        this.redisLock = new SimpleRedisLock(name, stringRedisTemplate);
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        // 1.本地锁被别的线程拿着，说明本JVM里已经有人在抢或者持有这把锁，不用再去Redis
+        LocalLock localLock = retain();
+        if (!localLock.tryLock()) {
+            release();
+            return false;
+        }
+        // 2.再拿Redis锁，拿不到就把本地锁还回去
+        boolean success = false;
+        try {
+            success = redisLock.tryLock(timeoutSec);
+            return success;
+        } finally {
+            if (!success) {
+                localLock.unlock();
+                release();
+            }
+        }
+    }
+
+    @Override
+    public boolean lock(long waitTime, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        // 1.在本地排队
+        LocalLock localLock = retain();
+        boolean locked = false;
+        try {
+            locked = localLock.tryLock(waitTime, unit);
+        } finally {
+            if (!locked) {
+                release();
+            }
+        }
+        if (!locked) {
+            return false;
+        }
+        // 2.用剩下的等待时间拿Redis锁
+        boolean success = false;
+        try {
+            success = redisLock.lock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return success;
+        } finally {
+            if (!success) {
+                localLock.unlock();
+                release();
+            }
+        }
+    }
+
+    @Override
+    public void unLock() {
+        // 先释放Redis锁，再让本地排队的下一个线程进来
+        try {
+            redisLock.unLock();
+        } finally {
+            LocalLock localLock = LOCAL_LOCKS.get(name);
+            if (localLock != null && localLock.isHeldByCurrentThread()) {
+                localLock.unlock();
+                release();
+            }
+        }
+    }
+
+    /**
+     * 本JVM里是否有线程正拿着这把锁的本地锁，不访问Redis。
+     * 用来在提交异步任务之前判断本地是不是已经有人在做了
+     */
+    public boolean isLockedLocally() {
+        LocalLock localLock = LOCAL_LOCKS.get(name);
+        return localLock != null && localLock.isLocked();
+    }
+
+    //拿到(没有就创建)这个锁名的本地锁，引用计数+1
+    private LocalLock retain() {
+        return LOCAL_LOCKS.compute(name, (k, v) -> {
+            LocalLock localLock = v == null ? new LocalLock() : v;
+            localLock.refs++;
+            return localLock;
+        });
+    }
+
+    //引用计数-1，没有线程持有或者排队了就从表里移除
+    private void release() {
+        LOCAL_LOCKS.computeIfPresent(name, (k, v) -> --v.refs == 0 ? null : v);
+    }
+
+    //引用计数只在ConcurrentHashMap的compute里读写，由桶锁保证可见性
+    private static class LocalLock extends ReentrantLock {
+        private int refs;
+    }
+}
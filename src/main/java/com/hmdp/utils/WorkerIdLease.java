@@ -0,0 +1,160 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.config.IdWorkerProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * snowflake模式的workerId租约：每个实例从Redis租用一个 idworker:worker:{workerId}(SET NX PX)，
+ * 后台线程每1/3有效期续期一次，续期失败(过期后被别的实例租走、Redis数据丢失)就重新租一个。
+ * 本地记录租约的有效截止时间validUntil，比Redis里的过期时间提前 最大时钟回拨 + 有效期的1/10：
+ * 前者是因为逻辑时钟最多能比墙上时钟快这么多，后者留给实例之间的时钟偏差，
+ * 所以在别的实例租到同一个workerId之前，本实例一定已经停止用它发号了。
+ * 租约失效期间workerId()返回-1，RedisIdWorker会临时退回redis模式
+ */
+@Slf4j
+@Component
+public class WorkerIdLease {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT = new DefaultRedisScript<>();
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>();
+    static {
+        LEASE_SCRIPT.setLocation(new ClassPathResource("id_worker_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IdWorkerProperties idWorkerProperties;
+
+    //租用者标识，和锁的线程标识一样用 UUID + 实例名，续期和释放时比对
+    private final String owner = UUID.randomUUID().toString(true) + "-" + ManagementFactory.getRuntimeMXBean().getName();
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    private volatile Lease lease;
+
+    @PostConstruct
+    private void init() {
+        if (!idWorkerProperties.usesSnowflake()) {
+            return;
+        }
+        long ttl = idWorkerProperties.getWorkerLeaseTtlMillis();
+        if (ttl <= margin()) {
+            throw new IllegalStateException("worker-lease-ttl-millis必须大于max-clock-backward-millis + worker-lease-ttl-millis/10");
+        }
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("id-worker-lease-").setDaemon(true).build());
+        // 启动时先同步租一次，Redis不可用也不影响启动，发号会退回redis模式
+        heartbeat();
+        heartbeatExecutor.scheduleAtFixedRate(this::heartbeat, ttl / 3, ttl / 3, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (heartbeatExecutor == null) {
+            return;
+        }
+        heartbeatExecutor.shutdownNow();
+        Lease current = lease;
+        lease = null;
+        if (current == null) {
+            return;
+        }
+        try {
+            // 不直接删除：逻辑时钟可能比墙上时钟快，workerId再保留max-clock-backward-millis，
+            // 避免马上重启的实例租到同一个workerId，发出和本实例最后一批相同的ID
+            stringRedisTemplate.execute(
+                    RENEW_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + current.workerId),
+                    owner, String.valueOf(Math.max(1, idWorkerProperties.getMaxClockBackwardMillis()))
+            );
+        } catch (Exception e) {
+            log.warn("释放workerId失败, workerId={}", current.workerId, e);
+        }
+    }
+
+    /**
+     * 当前有效的workerId，没有租到或者租约已经失效返回-1
+     */
+    public int workerId() {
+        Lease current = lease;
+        return current != null && System.currentTimeMillis() < current.validUntil ? current.workerId : -1;
+    }
+
+    private void heartbeat() {
+        try {
+            long ttl = idWorkerProperties.getWorkerLeaseTtlMillis();
+            // 有效期从发命令之前开始算，网络耗时只会让本地的有效期更保守
+            long start = System.currentTimeMillis();
+            Lease current = lease;
+            // 1.已经租到了就续期
+            if (current != null) {
+                Long renewed = stringRedisTemplate.execute(
+                        RENEW_SCRIPT,
+                        Collections.singletonList(ID_WORKER_KEY + current.workerId),
+                        owner, String.valueOf(ttl)
+                );
+                if (renewed != null && renewed == 1) {
+                    lease = new Lease(current.workerId, start + ttl - margin());
+                    return;
+                }
+                log.warn("workerId租约已经丢失, workerId={}", current.workerId);
+                lease = null;
+            }
+            // 2.没有租约，租一个空闲的workerId
+            int count = 1 << idWorkerProperties.getWorkerIdBits();
+            Long workerId = stringRedisTemplate.execute(
+                    LEASE_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY),
+                    owner, String.valueOf(ttl), String.valueOf(count),
+                    String.valueOf(ThreadLocalRandom.current().nextInt(count))
+            );
+            if (workerId == null || workerId < 0) {
+                log.warn("没有空闲的workerId, 共{}个, 暂时退回redis模式", count);
+                return;
+            }
+            lease = new Lease(workerId.intValue(), start + ttl - margin());
+            log.info("租到workerId={}", workerId);
+        } catch (Exception e) {
+            // 续期失败不清掉租约，validUntil到了自然失效，下次心跳再试
+            log.warn("workerId租约续期失败", e);
+        }
+    }
+
+    private long margin() {
+        return idWorkerProperties.getMaxClockBackwardMillis() + idWorkerProperties.getWorkerLeaseTtlMillis() / 10;
+    }
+
+    private static class Lease {
+        private final int workerId;
+        //本地认为租约有效的截止时间(毫秒)
+        private final long validUntil;
+
+        Lease(int workerId, long validUntil) {
+            this.workerId = workerId;
+            this.validUntil = validUntil;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+--作用：为snowflake模式租用一个空闲的workerId
+-- KEYS[1] workerId租约key的前缀 idworker:worker:
+-- ARGV[1] 租用者标识(实例标识 + 随机串)
+-- ARGV[2] 租约有效期(毫秒)
+-- ARGV[3] workerId的个数
+-- ARGV[4] 从哪个workerId开始找，调用方随机给，避免所有实例都从0开始抢
+--返回值：租到的workerId，-1表示没有空闲的workerId
+
+local count = tonumber(ARGV[3])
+local start = tonumber(ARGV[4])
+for i = 0, count - 1 do
+    local workerId = (start + i) % count
+    -- SET idworker:worker:{workerId} owner NX PX ttl
+    if(redis.call('set',KEYS[1]..workerId,ARGV[1],'NX','PX',ARGV[2])) then
+        return workerId
+    end
+end
+return -1
@@ -0,0 +1,10 @@
+--作用：续期workerId租约，只有租用者本人能续期
+-- KEYS[1] idworker:worker:{workerId}
+-- ARGV[1] 租用者标识
+-- ARGV[2] 租约有效期(毫秒)
+--返回值：1续期成功 0租约已经丢失(过期后被别的实例租走，或者Redis数据丢失)
+
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+    return redis.call('pexpire',KEYS[1],ARGV[2])
+end
+return 0
@@ -0,0 +1,14 @@
+--作用：获取可重入锁，锁是一个hash，field是线程标识，value是重入次数
+-- KEYS[1] 锁的key
+-- ARGV[1] 线程标识
+-- ARGV[2] 锁的过期时间(毫秒)
+--返回值：nil表示获取成功，否则是锁的剩余过期时间(毫秒)，等待的线程最多等这么久
+
+-- 锁不存在，或者是自己持有的锁，重入次数+1并重置过期时间
+if(redis.call('exists',KEYS[1]) == 0 or redis.call('hexists',KEYS[1],ARGV[1]) == 1) then
+    redis.call('hincrby',KEYS[1],ARGV[1],1)
+    redis.call('pexpire',KEYS[1],ARGV[2])
+    return nil
+end
+-- 被别人持有
+return redis.call('pttl',KEYS[1])
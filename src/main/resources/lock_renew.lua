@@ -0,0 +1,10 @@
+--作用：看门狗续期，只有锁还被这个线程持有时才续期
+-- KEYS[1] 锁的key
+-- ARGV[1] 线程标识
+-- ARGV[2] 锁的过期时间(毫秒)
+--返回值：1续期成功 0锁已经不是自己的了(已经释放或者过期)
+
+if(redis.call('hexists',KEYS[1],ARGV[1]) == 1) then
+    return redis.call('pexpire',KEYS[1],ARGV[2])
+end
+return 0
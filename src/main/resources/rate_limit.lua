@@ -0,0 +1,29 @@
+--作用：集群共享的令牌桶限流，所有实例对同一个key取令牌
+-- KEYS[1] 令牌桶key，hash里存 tokens(剩余令牌数) ts(上次取令牌的毫秒时间)
+-- ARGV[1] 每秒发放的令牌数
+-- ARGV[2] 桶容量
+-- ARGV[3] 当前时间(毫秒)
+--返回值：1拿到令牌 0被限流
+
+local rate = tonumber(ARGV[1])
+local burst = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+
+-- 1.按上次到现在经过的时间补充令牌，最多补满
+local bucket = redis.call('hmget',KEYS[1],'tokens','ts')
+local tokens = tonumber(bucket[1]) or burst
+local ts = tonumber(bucket[2]) or now
+if(now > ts) then
+    tokens = math.min(burst, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+
+-- 2.不够一个令牌，限流(不用写回，下次会按同样的ts重新计算)
+if(tokens < 1) then
+    return 0
+end
+
+-- 3.取走一个令牌，桶空闲一段时间后自动过期
+redis.call('hset',KEYS[1],'tokens',tokens - 1,'ts',ts)
+redis.call('pexpire',KEYS[1],math.ceil(burst * 1000 / rate) + 1000)
+return 1
@@ -1,39 +1,79 @@
---作用：1.判断用户是否有购买资格2.发送到消息队列
+--作用：1.判断秒杀时间和用户是否有购买资格 2.发送到消息队列
+--返回值：0成功 1库存不足 2重复下单 3秒杀尚未开始 4秒杀已经结束 5库存还没有预热到Redis
 
 
 -- 1.1优惠卷Id
-local voucherId = ARGV［1］--ARGV[]数据可以从外面传进来
+local voucherId = ARGV[1]--ARGV[]数据可以从外面传进来
 -- 1.2.用户Id
-local userId = ARGV［2］
+local userId = ARGV[2]
 -- 1.3.订单Id
 local orderId= ARGV[3]
+-- 1.4.当前时间(毫秒)，由调用方传入
+local now = tonumber(ARGV[4])
+-- 1.5.订单状态的过期时间(秒)
+local statusTtl = ARGV[5]
+-- 1.6.是否发送到stream.orders，订单队列用进程内环形队列时由Java入队
+local publish = ARGV[6] ~= '0'
+-- 1.7.支付超时时间(毫秒)，0表示不自动取消
+local payTimeout = tonumber(ARGV[7])
 
 -- 2. 数据key
 -- 2.1. 库存key
 local stockKey = 'seckill:stock:'..voucherId--拼接用 ..
 -- 2.2.订单key
 local orderKey = 'seckill:order:'..voucherId
+-- 2.3.秒杀时间窗口key，hash里存begin/end毫秒时间戳
+local timeKey = 'seckill:time:'..voucherId
+-- 2.4.订单状态key，客户端轮询用
+local statusKey = 'seckill:status:'..orderId
 
 -- 3.脚本业务
 
---3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get',stockKey)) <= 0) then--redis存进去的是字符串，所以要转成数字
-    -- 3.2.库存不足，返回1
+-- 3.1.判断库存是否已经预热，Redis被清空或重启后key会丢失
+local stock = redis.call('get',stockKey)
+if(stock == false) then
+    return 5
+end
+
+-- 3.2.判断秒杀时间
+local window = redis.call('hmget',timeKey,'begin','end')
+if(window[1] and now < tonumber(window[1])) then
+    return 3
+end
+if(window[2] and now > tonumber(window[2])) then
+    return 4
+end
+
+--3.3.判断库存是否充足
+if(tonumber(stock) <= 0) then--redis存进去的是字符串，所以要转成数字
+    -- 库存不足，返回1
     return 1
 end
 
--- 3.2.判断用户是否下单SISMEMBER orderKey userId(我们用set来存用户Id,判断库存是否充足)
+-- 3.4.判断用户是否下单SISMEMBER orderKey userId(我们用set来存用户Id,判断库存是否充足)
 if(redis.call('sismember',orderKey,userId)== 1) then
 
-    -- 3.3. 存在，说明是重复下单，返回2
+    -- 存在，说明是重复下单，返回2
     return 2
 
 end
---3.4扣库存 incrby stockKey -1 (加-1就是-1)
+--3.5扣库存 incrby stockKey -1 (加-1就是-1)
 redis.call('incrby',stockKey,-1)--就是说把键为stockKey的值-1
 
---3.5下单 保存用户 sadd orderKey userId
+--3.6下单 保存用户 sadd orderKey userId
 redis.call('sadd',orderKey,userId)
 
---3.6发送消息到队列中(下一步就是到数据库中进行库存扣除，实现异步下单),XADD stream.orders * k1 v1
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)--我们已经在redis中提前创建了stream.orders
\ No newline at end of file
+--3.7发送消息到队列中(下一步就是到数据库中进行库存扣除，实现异步下单),XADD stream.orders * k1 v1
+if(publish) then
+    redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)--我们已经在redis中提前创建了stream.orders
+end
+
+--3.8记录订单状态为排队中，消费者落库后会改成PERSISTED/FAILED
+redis.call('hset',statusKey,'userId',userId,'status','QUEUED')
+redis.call('expire',statusKey,statusTtl)
+
+--3.9登记到未支付订单的延时队列，score是支付截止时间，member是 订单id:券id:用户id
+if(payTimeout > 0) then
+    redis.call('zadd','seckill:unpaid',now + payTimeout,orderId..':'..voucherId..':'..userId)
+end
+return 0
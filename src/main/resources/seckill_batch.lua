@@ -0,0 +1,80 @@
+--作用：seckill.lua的批量版本，一次处理同一张券的多个下单请求
+--返回值：数组，第i个元素是第i个用户的结果 0成功 1库存不足 2重复下单 3秒杀尚未开始 4秒杀已经结束 5库存还没有预热到Redis
+
+-- 1.1.优惠卷Id
+local voucherId = ARGV[1]
+-- 1.2.当前时间(毫秒)
+local now = tonumber(ARGV[2])
+-- 1.3.订单状态的过期时间(秒)
+local statusTtl = ARGV[3]
+-- 1.4.是否发送到stream.orders，订单队列用进程内环形队列时由Java入队
+local publish = ARGV[4] ~= '0'
+-- 1.5.支付超时时间(毫秒)，0表示不自动取消
+local payTimeout = tonumber(ARGV[5])
+-- 1.6.从ARGV[6]开始每两个参数是一个请求：用户Id、订单Id
+local count = (#ARGV - 5) / 2
+
+-- 2.数据key
+local stockKey = 'seckill:stock:'..voucherId
+local orderKey = 'seckill:order:'..voucherId
+local timeKey = 'seckill:time:'..voucherId
+
+local results = {}
+local function fill(r)
+    for i = 1, count do
+        results[i] = r
+    end
+    return results
+end
+
+-- 3.整批共用的判断
+-- 3.1.判断库存是否已经预热
+local stock = redis.call('get',stockKey)
+if(stock == false) then
+    return fill(5)
+end
+stock = tonumber(stock)
+
+-- 3.2.判断秒杀时间
+local window = redis.call('hmget',timeKey,'begin','end')
+if(window[1] and now < tonumber(window[1])) then
+    return fill(3)
+end
+if(window[2] and now > tonumber(window[2])) then
+    return fill(4)
+end
+
+-- 4.按顺序处理每个请求
+local taken = 0
+for i = 1, count do
+    local userId = ARGV[4 + 2 * i]
+    local orderId = ARGV[5 + 2 * i]
+    if(stock <= 0) then
+        -- 4.1.库存不足
+        results[i] = 1
+    elseif(redis.call('sismember',orderKey,userId) == 1) then
+        -- 4.2.重复下单(同一批里的重复请求也会在这里被挡住)
+        results[i] = 2
+    else
+        -- 4.3.下单：保存用户、发送消息、记录订单状态、登记支付截止时间
+        stock = stock - 1
+        taken = taken + 1
+        redis.call('sadd',orderKey,userId)
+        if(publish) then
+            redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
+        end
+        local statusKey = 'seckill:status:'..orderId
+        redis.call('hset',statusKey,'userId',userId,'status','QUEUED')
+        redis.call('expire',statusKey,statusTtl)
+        if(payTimeout > 0) then
+            redis.call('zadd','seckill:unpaid',now + payTimeout,orderId..':'..voucherId..':'..userId)
+        end
+        results[i] = 0
+    end
+end
+
+-- 5.整批一次扣库存
+if(taken > 0) then
+    redis.call('incrby',stockKey,-taken)
+end
+return results
@@ -0,0 +1,63 @@
+--作用：组合抢购，一次判断并扣减同一个用户的多张秒杀券，要么全部成功，要么一张都不扣
+--返回值：数组 {r, i}，r为0表示全部成功；否则第i张券不满足条件，r和seckill.lua的返回值一样 1库存不足 2重复下单 3秒杀尚未开始 4秒杀已经结束 5库存还没有预热到Redis
+
+-- 1.1.用户Id
+local userId = ARGV[1]
+-- 1.2.当前时间(毫秒)
+local now = tonumber(ARGV[2])
+-- 1.3.订单状态的过期时间(秒)
+local statusTtl = ARGV[3]
+-- 1.4.是否发送到stream.orders，订单队列用进程内环形队列时由Java入队
+local publish = ARGV[4] ~= '0'
+-- 1.5.支付超时时间(毫秒)，0表示不自动取消
+local payTimeout = tonumber(ARGV[5])
+-- 1.6.从ARGV[6]开始每两个参数是一张券：优惠券Id、订单Id
+local count = (#ARGV - 5) / 2
+
+-- 2.先检查所有的券，任何一张不满足就直接返回，这时候还没有做任何修改
+for i = 1, count do
+    local voucherId = ARGV[4 + 2 * i]
+    -- 2.1.判断库存是否已经预热
+    local stock = redis.call('get','seckill:stock:'..voucherId)
+    if(stock == false) then
+        return {5, i}
+    end
+    -- 2.2.判断秒杀时间
+    local window = redis.call('hmget','seckill:time:'..voucherId,'begin','end')
+    if(window[1] and now < tonumber(window[1])) then
+        return {3, i}
+    end
+    if(window[2] and now > tonumber(window[2])) then
+        return {4, i}
+    end
+    -- 2.3.判断库存是否充足
+    if(tonumber(stock) <= 0) then
+        return {1, i}
+    end
+    -- 2.4.判断用户是否下过单
+    if(redis.call('sismember','seckill:order:'..voucherId,userId) == 1) then
+        return {2, i}
+    end
+end
+
+-- 3.全部满足，逐张扣库存、保存用户、记录订单状态、登记支付截止时间
+local lines = {}
+for i = 1, count do
+    local voucherId = ARGV[4 + 2 * i]
+    local orderId = ARGV[5 + 2 * i]
+    redis.call('incrby','seckill:stock:'..voucherId,-1)
+    redis.call('sadd','seckill:order:'..voucherId,userId)
+    local statusKey = 'seckill:status:'..orderId
+    redis.call('hset',statusKey,'userId',userId,'status','QUEUED')
+    redis.call('expire',statusKey,statusTtl)
+    if(payTimeout > 0) then
+        redis.call('zadd','seckill:unpaid',now + payTimeout,orderId..':'..voucherId..':'..userId)
+    end
+    lines[i] = voucherId..':'..orderId
+end
+
+-- 4.整单只发一条消息，lines里是 优惠券Id:订单Id，用逗号分隔
+if(publish) then
+    redis.call('xadd','stream.orders','*','userId',userId,'lines',table.concat(lines,','))
+end
+return {0, 0}
@@ -0,0 +1,16 @@
+--作用：退还一个用户占用的秒杀名额，把用户从已下单集合中移除并归还1个库存
+-- KEYS[1] 库存key(用户主段的库存)
+-- KEYS[2] 已下单用户集合key(用户主段的集合)
+-- ARGV[1] 用户id
+--返回值：1已退还 0用户不在集合中(已经退还过或者从来没下过单)
+
+-- 1.先移除用户，移除成功才归还库存，重复调用不会多还
+if(redis.call('srem',KEYS[2],ARGV[1]) == 0) then
+    return 0
+end
+
+-- 2.归还库存 INCRBY stockKey 1；库存key不在说明Redis被清空过，等预热从数据库重建
+if(redis.call('exists',KEYS[1]) == 1) then
+    redis.call('incrby',KEYS[1],1)
+end
+return 1
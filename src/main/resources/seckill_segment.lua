@@ -0,0 +1,41 @@
+--作用：分段库存的主段扣减，KEYS里的key带同一个hash tag，在同一个slot上
+--返回值：0成功 2重复下单 3秒杀尚未开始 4秒杀已经结束 5库存还没有预热到Redis 6主段没有库存
+-- KEYS[1] 主段库存key seckill:stock:{voucherId:i}
+-- KEYS[2] 主段用户集合 seckill:order:{voucherId:i}
+-- KEYS[3] 主段的秒杀时间窗口 seckill:time:{voucherId:i}
+-- ARGV[1] 用户id
+-- ARGV[2] 当前时间(毫秒)
+
+-- 1.判断库存是否已经预热
+local stock = redis.call('get',KEYS[1])
+if(stock == false) then
+    return 5
+end
+
+-- 2.判断秒杀时间
+local now = tonumber(ARGV[2])
+local window = redis.call('hmget',KEYS[3],'begin','end')
+if(window[1] and now < tonumber(window[1])) then
+    return 3
+end
+if(window[2] and now > tonumber(window[2])) then
+    return 4
+end
+
+-- 3.判断用户是否下过单，主段的集合就是这个用户的一人一单记录
+if(redis.call('sismember',KEYS[2],ARGV[1]) == 1) then
+    -- 重复下单，返回2
+    return 2
+end
+
+-- 4.先把用户写进主段集合占位，后面去兄弟段扣库存时，同一个用户的并发请求会在这里被拦住
+redis.call('sadd',KEYS[2],ARGV[1])
+
+-- 5.主段还有库存就直接扣
+if(tonumber(stock) > 0) then
+    redis.call('incrby',KEYS[1],-1)
+    return 0
+end
+
+-- 6.主段没库存了，返回6，由调用方去兄弟段扣，都扣不到再把占位删掉
+return 6
@@ -0,0 +1,9 @@
+--作用：主段没库存时，到兄弟段扣一个库存
+-- KEYS[1] 兄弟段库存key seckill:stock:{voucherId:j}
+
+if(tonumber(redis.call('get',KEYS[1]) or '0') > 0) then
+    redis.call('incrby',KEYS[1],-1)
+    return 0
+end
+-- 这一段也没有库存了
+return 1
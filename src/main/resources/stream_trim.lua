@@ -0,0 +1,24 @@
+--作用：裁剪已经确认过的stream消息，裁剪位置不会越过消费者组里最早的pending消息(需要Redis 6.2+)
+-- KEYS[1] stream的key
+-- ARGV[1] 消费者组
+-- ARGV[2] Java算出的裁剪位置(保留 >= 这个id的消息)
+--返回值：删除的消息数
+
+-- 比较两个消息id(毫秒时间-序号)，a < b 返回true
+local function less(a, b)
+    local aMs, aSeq = string.match(a, '(%d+)-(%d+)')
+    local bMs, bSeq = string.match(b, '(%d+)-(%d+)')
+    aMs, aSeq, bMs, bSeq = tonumber(aMs), tonumber(aSeq), tonumber(bMs), tonumber(bSeq)
+    return aMs < bMs or (aMs == bMs and aSeq < bSeq)
+end
+
+local minId = ARGV[2]
+
+-- 1.Java计算之后可能又有消息处理失败进入pending，这里在脚本里再确认一次 XPENDING key group
+local pending = redis.call('xpending', KEYS[1], ARGV[1])
+if(pending[1] > 0 and less(pending[2], minId)) then
+    minId = pending[2]
+end
+
+-- 2.近似裁剪，只删除整个宏节点，开销很小 XTRIM key MINID ~ minId
+return redis.call('xtrim', KEYS[1], 'MINID', '~', minId)
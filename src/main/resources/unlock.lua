@@ -1,10 +1,17 @@
----
---- Generated by EmmyLua(https://github.com/EmmyLua)
---- Created by Thomas.
---- DateTime: 2025/4/2 19:08
+--作用：释放可重入锁，重入次数-1，减到0才删除锁并发布释放通知，唤醒等待这把锁的线程
+-- KEYS[1] 锁的key
+-- ARGV[1] 线程标识
+-- ARGV[2] 释放通知的频道
+--返回值：nil表示锁不是自己的 0还有重入次数，锁继续持有 1锁已经释放
+
 ---比较线程标识和锁中的标识的不同
-if(redis.call("get",KEYS[1])==ARGV[1]) then
-    --释放锁
-    return redis.call("del",KEYS[1])
+if(redis.call('hexists',KEYS[1],ARGV[1]) == 0) then
+    return nil
 end
-return 0
\ No newline at end of file
+if(redis.call('hincrby',KEYS[1],ARGV[1],-1) > 0) then
+    return 0
+end
+--释放锁
+redis.call('del',KEYS[1])
+redis.call('publish',ARGV[2],KEYS[1])
+return 1
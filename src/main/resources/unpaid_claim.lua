@@ -0,0 +1,15 @@
+--作用：从未支付订单的延时队列中认领一批到期的订单
+-- KEYS[1] 延时队列 seckill:unpaid，score是支付截止时间
+-- ARGV[1] 当前时间(毫秒)
+-- ARGV[2] 最多认领的订单数
+-- ARGV[3] 租期截止时间(毫秒)
+--返回值：认领到的member数组，member是 订单id:券id:用户id
+
+-- 1.取出已经到期的订单
+local due = redis.call('zrangebyscore',KEYS[1],'-inf',ARGV[1],'LIMIT',0,ARGV[2])
+
+-- 2.把score改成租期截止时间，其他线程和实例不会再认领到，处理失败或者实例挂了，租期过后会被重新认领
+for i = 1, #due do
+    redis.call('zadd',KEYS[1],ARGV[3],due[i])
+end
+return due
@@ -0,0 +1,52 @@
+package com.hmdp.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 压测的延迟记录：预先按请求数分配数组，每个请求写自己的下标，压测线程之间没有竞争，
+ * 结束后排序一次算分位数
+ */
+class LatencyRecorder {
+
+    private final long[] nanos;
+
+    LatencyRecorder(int requests) {
+        this.nanos = new long[requests];
+    }
+
+    void record(int index, long elapsedNanos) {
+        nanos[index] = elapsedNanos;
+    }
+
+    Snapshot snapshot() {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return new Snapshot(sorted);
+    }
+
+    static class Snapshot {
+        private final long[] sorted;
+
+        private Snapshot(long[] sorted) {
+            this.sorted = sorted;
+        }
+
+        //第p分位的延迟(毫秒)，p取0~1，比如0.999
+        double percentileMillis(double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return toMillis(sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+        }
+
+        double maxMillis() {
+            return sorted.length == 0 ? 0 : toMillis(sorted[sorted.length - 1]);
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
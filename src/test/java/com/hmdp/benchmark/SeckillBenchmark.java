@@ -0,0 +1,270 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀链路压测：内嵌redis-server + MySQL模式的H2，不需要外部环境，mvn test -Pbenchmark 执行。
+ * 模拟大量用户并发调用 VoucherOrderServiceImpl.seckillVoucher(每个用户请求多次，顺序用固定种子打乱，可重复)，
+ * 统计放行速率、p50/p99/p999延迟、消费者把订单全部落库的耗时，并检查有没有超卖、一人多单、丢单。
+ * 可调参数(-D传入)：benchmark.users、benchmark.stock、benchmark.threads、benchmark.attempts、benchmark.warmup-users、
+ * benchmark.min-admitted-per-second、benchmark.max-p99-millis(后两个大于0时作为回归门槛)，
+ * 秒杀链路本身的参数直接用 -Dhmdp.seckill.xxx 覆盖，比如 -Dhmdp.seckill.batch.enabled=true
+ */
+@Tag("benchmark")
+@ActiveProfiles("benchmark")
+@SpringBootTest
+class SeckillBenchmark {
+
+    private static final int USERS = Integer.getInteger("benchmark.users", 10000);
+    private static final int STOCK = Integer.getInteger("benchmark.stock", 2000);
+    private static final int THREADS = Integer.getInteger("benchmark.threads", 64);
+    private static final int ATTEMPTS = Integer.getInteger("benchmark.attempts", 2);
+    private static final int WARMUP_USERS = Integer.getInteger("benchmark.warmup-users", 2000);
+    private static final long DRAIN_TIMEOUT_SECONDS = Long.getLong("benchmark.drain-timeout-seconds", 120);
+    private static final double MIN_ADMITTED_PER_SECOND = Double.parseDouble(System.getProperty("benchmark.min-admitted-per-second", "0"));
+    private static final double MAX_P99_MILLIS = Double.parseDouble(System.getProperty("benchmark.max-p99-millis", "0"));
+
+    private static RedisServer redisServer;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //Spring容器启动前先启动内嵌Redis，端口随机，进程退出时关闭
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = new RedisServer(port);
+        redisServer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                redisServer.stop();
+            } catch (IOException ignored) {
+            }
+        }));
+        registry.add("spring.redis.port", () -> port);
+    }
+
+    @Test
+    void seckill() throws Exception {
+        // 1.预热：另建一张券跑一轮小规模的压测，让JIT、连接池、Lua脚本缓存都就绪，结果不统计
+        if (WARMUP_USERS > 0) {
+            Long warmupVoucherId = createVoucher(Math.max(1, WARMUP_USERS / 5));
+            run(warmupVoucherId, WARMUP_USERS, 1_000_000_000L);
+            awaitDrained(warmupVoucherId, countAdmitted(warmupVoucherId));
+        }
+
+        // 2.压测
+        Long voucherId = createVoucher(STOCK);
+        Run run = run(voucherId, USERS, 0);
+
+        // 3.等消费者把放行的订单全部落库
+        long drainStart = System.nanoTime();
+        boolean drained = awaitDrained(voucherId, run.orderIds.size());
+        double drainMillis = (System.nanoTime() - drainStart) / 1e6;
+
+        // 4.输出报告
+        LatencyRecorder.Snapshot latency = run.latency.snapshot();
+        double seconds = run.elapsedNanos / 1e9;
+        StringBuilder report = new StringBuilder()
+                .append("\n========== 秒杀压测 ==========")
+                .append(String.format("%n用户数 %d，每个用户请求 %d 次，库存 %d，并发线程 %d", USERS, ATTEMPTS, STOCK, THREADS))
+                .append(String.format("%n请求 %d 个，耗时 %.1f ms，%.0f req/s", run.requests, seconds * 1000, run.requests / seconds))
+                .append(String.format("%n放行 %d 个，%.0f admitted/s", run.orderIds.size(), run.orderIds.size() / seconds))
+                .append(String.format("%n延迟 p50 %.3f ms，p99 %.3f ms，p999 %.3f ms，max %.3f ms",
+                        latency.percentileMillis(0.5), latency.percentileMillis(0.99),
+                        latency.percentileMillis(0.999), latency.maxMillis()))
+                .append(String.format("%n落库耗时 %.1f ms%s", drainMillis, drained ? "" : "(超时，没有全部落库)"));
+        run.rejections.forEach((reason, count) -> report.append(String.format("%n拒绝[%s] %d 个", reason, count.sum())));
+        System.out.println(report.append("\n==============================="));
+
+        // 5.正确性检查
+        assertTrue(drained, "消费者没有在" + DRAIN_TIMEOUT_SECONDS + "秒内把订单全部落库");
+        checkConsistency(voucherId, run.orderIds);
+
+        // 6.性能门槛，配置了才检查
+        if (MIN_ADMITTED_PER_SECOND > 0) {
+            assertTrue(run.orderIds.size() / seconds >= MIN_ADMITTED_PER_SECOND, "放行速率低于门槛");
+        }
+        if (MAX_P99_MILLIS > 0) {
+            assertTrue(latency.percentileMillis(0.99) <= MAX_P99_MILLIS, "p99延迟高于门槛");
+        }
+    }
+
+    private Long createVoucher(int stock) {
+        Voucher voucher = new Voucher()
+                .setShopId(1L)
+                .setTitle("压测秒杀券")
+                .setPayValue(100L)
+                .setActualValue(1000L)
+                .setType(1)
+                .setStock(stock)
+                .setSegments(Integer.getInteger("benchmark.segments", 1))
+                .setBeginTime(LocalDateTime.now().minusHours(1))
+                .setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 并发执行一轮秒杀
+     * @param userIdOffset 用户id的起始值，预热和正式压测用不同的用户
+     */
+    private Run run(Long voucherId, int users, long userIdOffset) throws InterruptedException {
+        // 1.每个用户请求ATTEMPTS次，用固定种子打乱，每次压测的请求顺序相同
+        int requests = users * ATTEMPTS;
+        long[] userIds = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            userIds[i] = userIdOffset + i % users + 1;
+        }
+        Random random = new Random(42);
+        for (int i = requests - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long tmp = userIds[i];
+            userIds[i] = userIds[j];
+            userIds[j] = tmp;
+        }
+
+        // 2.所有线程同时开始，每个线程按下标领取请求
+        Run run = new Run(requests);
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-benchmark-").build());
+        for (int t = 0; t < THREADS; t++) {
+            executor.submit(() -> {
+                UserDTO user = new UserDTO();
+                start.await();
+                for (int i = next.getAndIncrement(); i < requests; i = next.getAndIncrement()) {
+                    user.setId(userIds[i]);
+                    UserHolder.saveUser(user);
+                    long begin = System.nanoTime();
+                    Result result;
+                    try {
+                        result = voucherOrderService.seckillVoucher(voucherId);
+                    } catch (Exception e) {
+                        result = Result.fail(e.getClass().getSimpleName());
+                    } finally {
+                        UserHolder.removeUser();
+                    }
+                    run.latency.record(i, System.nanoTime() - begin);
+                    if (Boolean.TRUE.equals(result.getSuccess())) {
+                        run.orderIds.add(((Number) result.getData()).longValue());
+                    } else {
+                        run.rejections.computeIfAbsent(result.getErrorMsg(), k -> new LongAdder()).increment();
+                    }
+                }
+                return null;
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.MINUTES);
+        run.elapsedNanos = System.nanoTime() - begin;
+        return run;
+    }
+
+    private int countAdmitted(Long voucherId) {
+        Long size = stringRedisTemplate.opsForSet().size(SECKILL_ORDER_KEY + voucherId);
+        return size == null ? 0 : size.intValue();
+    }
+
+    private boolean awaitDrained(Long voucherId, int admitted) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+        while (voucherOrderService.query().eq("voucher_id", voucherId).count() < admitted) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        return true;
+    }
+
+    //没有超卖、没有一人多单、放行的订单都落库了、Redis和MySQL的库存一致
+    private void checkConsistency(Long voucherId, Set<Long> admitted) {
+        List<VoucherOrder> orders = voucherOrderService.query().select("id", "user_id").eq("voucher_id", voucherId).list();
+        Set<Long> orderIds = new HashSet<>();
+        Set<Long> buyers = new HashSet<>();
+        for (VoucherOrder order : orders) {
+            orderIds.add(order.getId());
+            buyers.add(order.getUserId());
+        }
+        assertEquals(orders.size(), buyers.size(), "同一个用户有多个订单");
+        assertEquals(admitted, orderIds, "放行的订单和落库的订单不一致");
+        assertTrue(orders.size() <= STOCK, "超卖：订单数" + orders.size() + "大于库存" + STOCK);
+        if ((long) USERS >= STOCK) {
+            assertEquals(STOCK, orders.size(), "用户数不少于库存时应该正好卖完");
+        }
+
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        assertEquals(STOCK - orders.size(), voucher.getStock().intValue(), "MySQL库存和订单数对不上");
+        if (voucher.getSegments() == null || voucher.getSegments() <= 1) {
+            assertEquals(String.valueOf(STOCK - orders.size()), stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId),
+                    "Redis库存和订单数对不上");
+        }
+    }
+
+    private static class Run {
+        private final int requests;
+        private final LatencyRecorder latency;
+        private final Set<Long> orderIds = ConcurrentHashMap.newKeySet();
+        private final Map<String, LongAdder> rejections = new ConcurrentHashMap<>();
+        private long elapsedNanos;
+
+        Run(int requests) {
+            this.requests = requests;
+            this.latency = new LatencyRecorder(requests);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.hmdp.jmh;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.RefreshTokenInterceptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+
+/**
+ * BeanUtil.fillBeanWithMap 的两个调用点：
+ * 1.RefreshTokenInterceptor 每个请求把Redis里的登录用户hash转成UserDTO(整个preHandle + afterCompletion)
+ * 2.订单流消费者把Stream消息转成VoucherOrder
+ * Redis用StubRedisTemplate代替，hash的内容和登录时写入的一样(字段值都是字符串)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeanFillBenchmark {
+
+    private static final String TOKEN = "5f1b4a0c8d3e4f6a9b2c7d8e0f1a2b3c";
+
+    private RefreshTokenInterceptor interceptor;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+    private Map<Object, Object> streamMessage;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // 登录时写入的用户hash
+        Map<Object, Object> userMap = new HashMap<>();
+        userMap.put("id", "1010");
+        userMap.put("nickName", "user_8d3e4f6a9b");
+        userMap.put("icon", "/imgs/icons/user1010.jpg");
+        StubRedisTemplate redis = new StubRedisTemplate();
+        redis.putHash(LOGIN_USER_KEY + TOKEN, userMap);
+
+        interceptor = new RefreshTokenInterceptor();
+        ReflectionTestUtils.setField(interceptor, "stringRedisTemplate", redis);
+        request = new MockHttpServletRequest();
+        request.addHeader("authorization", TOKEN);
+        response = new MockHttpServletResponse();
+
+        // seckill.lua 写入 stream.orders 的消息
+        streamMessage = new HashMap<>();
+        streamMessage.put("userId", "1010");
+        streamMessage.put("voucherId", "10");
+        streamMessage.put("id", "293822599755006977");
+    }
+
+    @Benchmark
+    public boolean refreshToken() throws Exception {
+        boolean pass = interceptor.preHandle(request, response, null);
+        interceptor.afterCompletion(request, response, null, null);
+        return pass;
+    }
+
+    @Benchmark
+    public VoucherOrder streamMessageToOrder() {
+        return BeanUtil.fillBeanWithMap(streamMessage, new VoucherOrder(), true);
+    }
+}
@@ -0,0 +1,99 @@
+package com.hmdp.jmh;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LockMetrics;
+import com.hmdp.utils.MetricsRegistry;
+import com.hmdp.utils.NearCache;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+
+/**
+ * CacheClient 查询商铺的缓存命中路径：Hutool JSONUtil的序列化和反序列化。
+ * Redis用StubRedisTemplate代替，缓存里预先放好一个店铺，两种查询都走命中分支，不会回源数据库。
+ * nearCache=true时打开本地一级缓存，查询命中本地缓存，不再读Redis、解析JSON
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheClientBenchmark {
+
+    private static final Long SHOP_ID = 1L;
+
+    @Param({"false", "true"})
+    private boolean nearCache;
+
+    private CacheClient cacheClient;
+    private Shop shop;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        shop = new Shop()
+                .setId(SHOP_ID)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+
+        StubRedisTemplate redis = new StubRedisTemplate();
+        // queryWithPassThrough读的是 cache:shop:{id}
+        redis.putString(CACHE_SHOP_KEY + SHOP_ID, JSONUtil.toJsonStr(shop));
+        // 逻辑过期的数据一直不过期，只走反序列化，不触发重建
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusDays(1));
+        redis.putString("logical:" + SHOP_ID, JSONUtil.toJsonStr(redisData));
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.getNear().setEnabled(nearCache);
+        // 有效期足够长，测量期间不会过期
+        cacheProperties.getNear().setTtlMillis(TimeUnit.HOURS.toMillis(1));
+        MetricsRegistry metricsRegistry = new MetricsRegistry();
+        cacheClient = new CacheClient(redis, new LockMetrics(metricsRegistry), new NearCache(cacheProperties, metricsRegistry), metricsRegistry);
+    }
+
+    @Benchmark
+    public void set() {
+        cacheClient.set(CACHE_SHOP_KEY + SHOP_ID, shop, 30L, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public Shop queryWithPassThrough() {
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, SHOP_ID, Shop.class, id -> null, 30L, TimeUnit.MINUTES);
+    }
+
+    @Benchmark
+    public Shop queryWithLogicalExpire() {
+        return cacheClient.queryWithLogicalExpire("logical:", SHOP_ID, Shop.class, id -> null, 30L, TimeUnit.MINUTES);
+    }
+}
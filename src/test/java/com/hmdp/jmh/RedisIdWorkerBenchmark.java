@@ -0,0 +1,64 @@
+package com.hmdp.jmh;
+
+import com.hmdp.config.IdWorkerProperties;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.WorkerIdLease;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RedisIdWorker.nextId 每次下单都会调用。Redis用StubRedisTemplate代替，
+ * redis模式测的是拼key、格式化日期这些Java侧的开销，segment、snowflake模式本来就不访问网络(号段预取除外)。
+ * 多线程竞争用 -Djmh.args="-t 4" 测
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisIdWorkerBenchmark {
+
+    @Param({"REDIS", "SEGMENT", "SNOWFLAKE"})
+    private IdWorkerProperties.Mode mode;
+
+    private RedisIdWorker redisIdWorker;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        IdWorkerProperties properties = new IdWorkerProperties();
+        properties.setMode(mode);
+        // 号段足够大，测的是本地发号而不是同步申请号段
+        properties.setSegmentSize(1_000_000);
+        redisIdWorker = new RedisIdWorker();
+        ReflectionTestUtils.setField(redisIdWorker, "stringRedisTemplate", new StubRedisTemplate());
+        ReflectionTestUtils.setField(redisIdWorker, "idWorkerProperties", properties);
+        ReflectionTestUtils.setField(redisIdWorker, "workerIdLease", new FixedWorkerIdLease());
+    }
+
+    @Benchmark
+    public long nextId() {
+        return redisIdWorker.nextId("order");
+    }
+
+    //不访问Redis的租约，workerId固定为1
+    private static class FixedWorkerIdLease extends WorkerIdLease {
+        @Override
+        public int workerId() {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.hmdp.jmh;
+
+import com.hmdp.utils.RegexUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RegexUtils 发送验证码和登录时的手机号校验，合法和不合法的手机号各测一次
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegexUtilsBenchmark {
+
+    @Param({"13812345678", "12345678901"})
+    private String phone;
+
+    @Benchmark
+    public boolean isPhoneInvalid() {
+        return RegexUtils.isPhoneInvalid(phone);
+    }
+}
@@ -0,0 +1,76 @@
+package com.hmdp.jmh;
+
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 微基准用的Redis替身：数据放在本地Map里，只实现被测代码用到的命令(GET SET INCR INCRBY HGETALL EXPIRE)，
+ * 不连Redis，测出来的是Java这一侧的耗时和分配。
+ * opsForValue()/opsForHash()用动态代理实现，每次调用会多一个参数数组的分配，对比优化前后时这部分是不变的
+ */
+class StubRedisTemplate extends StringRedisTemplate {
+
+    private final Map<String, String> strings = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, Map<Object, Object>> hashes = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    private final ValueOperations<String, String> valueOps = (ValueOperations<String, String>) Proxy.newProxyInstance(
+            ValueOperations.class.getClassLoader(), new Class<?>[]{ValueOperations.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "get":
+                        return strings.get((String) args[0]);
+                    case "set":
+                        strings.put((String) args[0], (String) args[1]);
+                        return null;
+                    case "setIfAbsent":
+                        return strings.putIfAbsent((String) args[0], (String) args[1]) == null;
+                    case "increment":
+                        long delta = args.length == 1 ? 1 : ((Number) args[1]).longValue();
+                        return counters.computeIfAbsent((String) args[0], k -> new AtomicLong()).addAndGet(delta);
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+    @SuppressWarnings("unchecked")
+    private final HashOperations<String, Object, Object> hashOps = (HashOperations<String, Object, Object>) Proxy.newProxyInstance(
+            HashOperations.class.getClassLoader(), new Class<?>[]{HashOperations.class}, (proxy, method, args) -> {
+                if ("entries".equals(method.getName())) {
+                    return hashes.getOrDefault((String) args[0], Collections.emptyMap());
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+
+    void putString(String key, String value) {
+        strings.put(key, value);
+    }
+
+    void putHash(String key, Map<Object, Object> hash) {
+        hashes.put(key, hash);
+    }
+
+    @Override
+    public ValueOperations<String, String> opsForValue() {
+        return valueOps;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <HK, HV> HashOperations<String, HK, HV> opsForHash() {
+        return (HashOperations<String, HK, HV>) hashOps;
+    }
+
+    @Override
+    public Boolean expire(String key, long timeout, TimeUnit unit) {
+        return true;
+    }
+}
@@ -0,0 +1,61 @@
+-- 压测用的H2(MySQL模式)表结构，只保留秒杀链路用到的表，字段和索引与db/hmdp.sql保持一致
+DROP TABLE IF EXISTS tb_voucher;
+CREATE TABLE tb_voucher (
+  id bigint NOT NULL AUTO_INCREMENT,
+  shop_id bigint NULL DEFAULT NULL,
+  title varchar(255) NOT NULL,
+  sub_title varchar(255) NULL DEFAULT NULL,
+  rules varchar(1024) NULL DEFAULT NULL,
+  pay_value bigint NOT NULL,
+  actual_value bigint NOT NULL,
+  type tinyint NOT NULL DEFAULT 0,
+  status tinyint NOT NULL DEFAULT 1,
+  create_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
+
+DROP TABLE IF EXISTS tb_seckill_voucher;
+CREATE TABLE tb_seckill_voucher (
+  voucher_id bigint NOT NULL,
+  stock int NOT NULL,
+  segments int NOT NULL DEFAULT 1,
+  create_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  begin_time timestamp NOT NULL,
+  end_time timestamp NOT NULL,
+  update_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (voucher_id)
+);
+
+DROP TABLE IF EXISTS tb_voucher_order;
+CREATE TABLE tb_voucher_order (
+  id bigint NOT NULL,
+  user_id bigint NOT NULL,
+  voucher_id bigint NOT NULL,
+  pay_type tinyint NOT NULL DEFAULT 1,
+  status tinyint NOT NULL DEFAULT 1,
+  create_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  pay_time timestamp NULL DEFAULT NULL,
+  use_time timestamp NULL DEFAULT NULL,
+  refund_time timestamp NULL DEFAULT NULL,
+  update_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  active tinyint AS (CASE WHEN status = 4 THEN NULL ELSE 1 END),
+  PRIMARY KEY (id),
+  CONSTRAINT uk_user_voucher UNIQUE (user_id, voucher_id, active)
+);
+
+DROP TABLE IF EXISTS tb_voucher_order_dead_letter;
+CREATE TABLE tb_voucher_order_dead_letter (
+  id bigint NOT NULL AUTO_INCREMENT,
+  order_id bigint NOT NULL,
+  user_id bigint NOT NULL,
+  voucher_id bigint NOT NULL,
+  stream_id varchar(32) NOT NULL,
+  deliveries int NOT NULL,
+  error varchar(512) NULL DEFAULT NULL,
+  status tinyint NOT NULL DEFAULT 0,
+  create_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  update_time timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (id)
+);
+CREATE INDEX idx_order_id ON tb_voucher_order_dead_letter (order_id);